@@ -89,7 +89,7 @@ public class AnswerPresenter extends Presenter<AnswerPresenter.AnswerUi>
     }
 
     @Override
-    public void onCallListChange(CallList list) {
+    public void onCallListChange(CallList list, CallListDelta delta) {
     }
 
     @Override
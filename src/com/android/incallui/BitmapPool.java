@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+
+/**
+ * Pool of bitmaps which are no longer displayed, kept so that photo decodes can reuse their
+ * memory through {@link BitmapFactory.Options#inBitmap} instead of allocating new bitmaps.
+ * Bitmaps are bucketed by the power of two at or above their allocation size, and the pool
+ * refuses bitmaps once it holds its maximum number of bytes.
+ *
+ * Only mutable {@link Bitmap.Config#ARGB_8888} bitmaps are pooled, since those are what photo
+ * decodes produce. Thread safe.
+ */
+/* package */ final class BitmapPool {
+
+    /** Bytes per pixel of {@link Bitmap.Config#ARGB_8888}. */
+    public static final int BYTES_PER_PIXEL = 4;
+
+    private final int mMaxBytes;
+    private final SparseArray<ArrayList<Bitmap>> mBuckets = new SparseArray<>();
+    private int mBytes;
+
+    private int mHits;
+    private int mMisses;
+    private int mRejected;
+
+    /* package */ BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Adds a bitmap to the pool. The caller must not use the bitmap afterwards.
+     *
+     * @return {@code true} if the bitmap was pooled, {@code false} if it cannot be reused or
+     * the pool is full.
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            return false;
+        }
+        final int size = bitmap.getAllocationByteCount();
+        if (mBytes + size > mMaxBytes) {
+            mRejected++;
+            return false;
+        }
+        final int bucket = bucketOf(size);
+        ArrayList<Bitmap> bitmaps = mBuckets.get(bucket);
+        if (bitmaps == null) {
+            bitmaps = new ArrayList<>();
+            mBuckets.put(bucket, bitmaps);
+        }
+        bitmaps.add(bitmap);
+        mBytes += size;
+        return true;
+    }
+
+    /**
+     * Takes a bitmap which can be reused for a decode of {@code byteCount} bytes out of the pool.
+     * The bitmap is at most four times as large as needed.
+     *
+     * @return The bitmap, or null if the pool has none of the right size.
+     */
+    public synchronized Bitmap get(int byteCount) {
+        final int bucket = bucketOf(byteCount);
+        // Everything in the next bucket is large enough, but the lower end of the requested
+        // bucket may not be.
+        for (int b = bucket; b <= bucket + 1; b++) {
+            final ArrayList<Bitmap> bitmaps = mBuckets.get(b);
+            if (bitmaps == null) {
+                continue;
+            }
+            for (int i = bitmaps.size() - 1; i >= 0; i--) {
+                final Bitmap bitmap = bitmaps.get(i);
+                if (bitmap.getAllocationByteCount() >= byteCount) {
+                    bitmaps.remove(i);
+                    mBytes -= bitmap.getAllocationByteCount();
+                    mHits++;
+                    return bitmap;
+                }
+            }
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * @return A bitmap from the pool to decode a {@code width} x {@code height} photo into, or
+     * null.
+     */
+    public Bitmap get(int width, int height) {
+        return get(width * height * BYTES_PER_PIXEL);
+    }
+
+    public int getMaxByteCount() {
+        return mMaxBytes;
+    }
+
+    public synchronized int getByteCount() {
+        return mBytes;
+    }
+
+    public synchronized void clear() {
+        mBuckets.clear();
+        mBytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool{bytes=" + mBytes + "/" + mMaxBytes + ", hits=" + mHits
+                + ", misses=" + mMisses + ", rejected=" + mRejected + "}";
+    }
+
+    /**
+     * @return The exponent of the smallest power of two at or above {@code byteCount}.
+     */
+    private static int bucketOf(int byteCount) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(byteCount - 1, 0));
+    }
+}
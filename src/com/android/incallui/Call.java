@@ -23,6 +23,7 @@ import android.content.Context;
 import android.hardware.camera2.CameraCharacteristics;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.telecom.Connection;
 import android.telecom.DisconnectCause;
@@ -36,8 +37,12 @@ import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -132,6 +137,37 @@ public class Call {
         public static final int REQUEST_REJECTED = 5;
     }
 
+    /**
+     * Bits identifying the parts of a call which changed during an update from Telecom.
+     *
+     * @see Call#getChangedFields()
+     */
+    public static class ChangedFields {
+        public static final int NONE = 0;
+        public static final int STATE = 1 << 0;
+        public static final int DISCONNECT_CAUSE = 1 << 1;
+        /** Call capabilities or properties. */
+        public static final int CAPABILITIES = 1 << 2;
+        public static final int VIDEO_STATE = 1 << 3;
+        public static final int VIDEO_CALL = 1 << 4;
+        public static final int PARENT = 1 << 5;
+        public static final int CHILDREN = 1 << 6;
+        /** Handle, handle presentation or gateway info. */
+        public static final int HANDLE = 1 << 7;
+        /** CNAP name or CNAP name presentation. */
+        public static final int CALLER_DISPLAY_NAME = 1 << 8;
+        public static final int ACCOUNT = 1 << 9;
+        /** Call extras or intent extras. */
+        public static final int EXTRAS = 1 << 10;
+        public static final int CONNECT_TIME = 1 << 11;
+        public static final int STATUS_HINTS = 1 << 12;
+        public static final int CONFERENCEABLE_CALLS = 1 << 13;
+        public static final int CANNED_RESPONSES = 1 << 14;
+        /** Not reported by Telecom; set when the UI changes the session modification state. */
+        public static final int SESSION_MODIFICATION = 1 << 15;
+        public static final int ALL = (1 << 16) - 1;
+    }
+
     public static class VideoSettings {
         public static final int CAMERA_DIRECTION_UNKNOWN = -1;
         public static final int CAMERA_DIRECTION_FRONT_FACING =
@@ -249,10 +285,31 @@ public class Call {
     private boolean mIsEmergencyCall;
     private Uri mHandle;
     private final String mId;
+    private final int mCreationSequence;
+    /** {@link SystemClock#elapsedRealtime} when this call was first reported to the UI. */
+    private final long mCreationTimeMillis = SystemClock.elapsedRealtime();
     private int mState = State.INVALID;
+    /** Fields which changed in the last update that was forwarded to the {@link CallList}. */
+    private int mChangedFields = ChangedFields.ALL;
+    /** Number of updates forwarded to the {@link CallList}. */
+    private int mUpdateCount;
+    /** Telecom values seen at the last update, used to detect which fields changed. */
+    private android.telecom.Call.Details mLastDetails;
+    private android.telecom.Call mLastParent;
+    private final List<android.telecom.Call> mLastChildren = new ArrayList<>();
+    private final List<android.telecom.Call> mLastConferenceableCalls = new ArrayList<>();
+    private List<String> mLastCannedResponses;
+    private VideoCall mLastVideoCall;
     private DisconnectCause mDisconnectCause;
     private int mSessionModificationState;
     private final List<String> mChildCallIds = new ArrayList<>();
+    /** Ids of the children in {@link #mChildCallIds}, keyed by their Telecom call. */
+    private final HashMap<android.telecom.Call, String> mChildCallIdsByTelecommCall =
+            new HashMap<>();
+    /** Whether a child could not be resolved to a call yet and must be retried. */
+    private boolean mHasUnresolvedChildren;
+    /** Incremented every time a child joins or leaves the conference. */
+    private int mChildCallIdsVersion;
     private final VideoSettings mVideoSettings = new VideoSettings();
     /**
      * mModifyToVideoState is used to store requested upgrade / downgrade video state
@@ -278,13 +335,15 @@ public class Call {
     @NeededForTesting
     Call(int state) {
         mTelecommCall = null;
-        mId = ID_PREFIX + Integer.toString(sIdCounter++);
+        mCreationSequence = sIdCounter++;
+        mId = ID_PREFIX + Integer.toString(mCreationSequence);
         setState(state);
     }
 
     public Call(android.telecom.Call telecommCall) {
         mTelecommCall = telecommCall;
-        mId = ID_PREFIX + Integer.toString(sIdCounter++);
+        mCreationSequence = sIdCounter++;
+        mId = ID_PREFIX + Integer.toString(mCreationSequence);
 
         updateFromTelecommCall();
         mTelecommCall.registerCallback(mTelecomCallCallback);
@@ -303,9 +362,27 @@ public class Call {
     }
 
     private void update() {
+        update(ChangedFields.NONE);
+    }
+
+    /**
+     * Refreshes the call from Telecom and forwards it to the {@link CallList}. Telecom fires
+     * several callbacks for a single change, so updates which did not change anything are dropped
+     * here rather than restarting the whole presenter fan-out.
+     *
+     * @param forcedFields Fields to report as changed even if Telecom's state is unchanged.
+     */
+    private void update(int forcedFields) {
         Trace.beginSection("Update");
         int oldState = getState();
-        updateFromTelecommCall();
+        final int changedFields = updateFromTelecommCall() | forcedFields;
+        if (changedFields == ChangedFields.NONE) {
+            Log.v(this, "update: nothing changed, dropping update for " + mId);
+            Trace.endSection();
+            return;
+        }
+        mChangedFields = changedFields;
+        mUpdateCount++;
         if (oldState != getState() && getState() == Call.State.DISCONNECTED) {
             CallList.getInstance().onDisconnect(this);
         } else {
@@ -314,8 +391,15 @@ public class Call {
         Trace.endSection();
     }
 
-    private void updateFromTelecommCall() {
+    /**
+     * @return Bitmask of {@link ChangedFields} which differ from the previous update.
+     */
+    private int updateFromTelecommCall() {
         Log.d(this, "updateFromTelecommCall: " + mTelecommCall.toString());
+        final int oldState = getState();
+        final int oldRawState = mState;
+        final int changedFields = computeChangedFields();
+
         setState(translateState(mTelecommCall.getState()));
         setDisconnectCause(mTelecommCall.getDetails().getDisconnectCause());
 
@@ -326,11 +410,8 @@ public class Call {
             mTelecommCall.getVideoCall().registerCallback(mVideoCallCallback);
         }
 
-        mChildCallIds.clear();
-        for (int i = 0; i < mTelecommCall.getChildren().size(); i++) {
-            mChildCallIds.add(
-                    CallList.getInstance().getCallByTelecommCall(
-                            mTelecommCall.getChildren().get(i)).getId());
+        if ((changedFields & ChangedFields.CHILDREN) != 0 || mHasUnresolvedChildren) {
+            updateChildCallIds();
         }
 
         updateFromCallExtras(mTelecommCall.getDetails().getExtras());
@@ -358,6 +439,161 @@ public class Call {
                 }
             }
         }
+
+        // getState() also reflects the parent call, so compare it as well as the raw state.
+        final boolean stateChanged = oldState != getState() || oldRawState != mState;
+        return changedFields | (stateChanged ? ChangedFields.STATE : ChangedFields.NONE);
+    }
+
+    /**
+     * Applies the children which joined or left the conference since the last update to
+     * {@link #mChildCallIds}, rather than resolving every child again.
+     */
+    private void updateChildCallIds() {
+        final List<android.telecom.Call> children = mTelecommCall.getChildren();
+        boolean changed = false;
+
+        if (!mChildCallIdsByTelecommCall.isEmpty()) {
+            final HashSet<android.telecom.Call> current = new HashSet<>(children);
+            final Iterator<Map.Entry<android.telecom.Call, String>> iterator =
+                    mChildCallIdsByTelecommCall.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<android.telecom.Call, String> entry = iterator.next();
+                if (!current.contains(entry.getKey())) {
+                    mChildCallIds.remove(entry.getValue());
+                    iterator.remove();
+                    changed = true;
+                }
+            }
+        }
+
+        mHasUnresolvedChildren = false;
+        for (int i = 0; i < children.size(); i++) {
+            final android.telecom.Call child = children.get(i);
+            if (mChildCallIdsByTelecommCall.containsKey(child)) {
+                continue;
+            }
+            final Call childCall = CallList.getInstance().getCallByTelecommCall(child);
+            if (childCall == null) {
+                mHasUnresolvedChildren = true;
+                continue;
+            }
+            mChildCallIdsByTelecommCall.put(child, childCall.getId());
+            mChildCallIds.add(childCall.getId());
+            changed = true;
+        }
+
+        if (changed) {
+            mChildCallIdsVersion++;
+        }
+    }
+
+    /**
+     * Compares Telecom's current view of the call with the values seen at the previous update and
+     * remembers the current values for the next comparison.
+     */
+    private int computeChangedFields() {
+        final android.telecom.Call.Details details = mTelecommCall.getDetails();
+        final android.telecom.Call.Details last = mLastDetails;
+        int changed = ChangedFields.NONE;
+
+        if (last == null) {
+            changed = ChangedFields.ALL & ~ChangedFields.SESSION_MODIFICATION;
+        } else {
+            if (!Objects.equals(last.getDisconnectCause(), details.getDisconnectCause())) {
+                changed |= ChangedFields.DISCONNECT_CAUSE;
+            }
+            if (last.getCallCapabilities() != details.getCallCapabilities()
+                    || last.getCallProperties() != details.getCallProperties()) {
+                changed |= ChangedFields.CAPABILITIES;
+            }
+            if (last.getVideoState() != details.getVideoState()) {
+                changed |= ChangedFields.VIDEO_STATE;
+            }
+            if (!Objects.equals(last.getHandle(), details.getHandle())
+                    || last.getHandlePresentation() != details.getHandlePresentation()
+                    || !areGatewayInfosEqual(last.getGatewayInfo(), details.getGatewayInfo())) {
+                changed |= ChangedFields.HANDLE;
+            }
+            if (!Objects.equals(last.getCallerDisplayName(), details.getCallerDisplayName())
+                    || last.getCallerDisplayNamePresentation()
+                            != details.getCallerDisplayNamePresentation()) {
+                changed |= ChangedFields.CALLER_DISPLAY_NAME;
+            }
+            if (!Objects.equals(last.getAccountHandle(), details.getAccountHandle())) {
+                changed |= ChangedFields.ACCOUNT;
+            }
+            if (!areBundlesEqual(last.getExtras(), details.getExtras())
+                    || !areBundlesEqual(last.getIntentExtras(), details.getIntentExtras())) {
+                changed |= ChangedFields.EXTRAS;
+            }
+            if (last.getConnectTimeMillis() != details.getConnectTimeMillis()) {
+                changed |= ChangedFields.CONNECT_TIME;
+            }
+            if (!Objects.equals(last.getStatusHints(), details.getStatusHints())) {
+                changed |= ChangedFields.STATUS_HINTS;
+            }
+            if (mLastParent != mTelecommCall.getParent()) {
+                changed |= ChangedFields.PARENT;
+            }
+            if (!mLastChildren.equals(mTelecommCall.getChildren())) {
+                changed |= ChangedFields.CHILDREN;
+            }
+            if (!mLastConferenceableCalls.equals(mTelecommCall.getConferenceableCalls())) {
+                changed |= ChangedFields.CONFERENCEABLE_CALLS;
+            }
+            if (!Objects.equals(mLastCannedResponses, mTelecommCall.getCannedTextResponses())) {
+                changed |= ChangedFields.CANNED_RESPONSES;
+            }
+            if (mLastVideoCall != mTelecommCall.getVideoCall()) {
+                changed |= ChangedFields.VIDEO_CALL;
+            }
+        }
+
+        mLastDetails = details;
+        mLastParent = mTelecommCall.getParent();
+        mLastChildren.clear();
+        mLastChildren.addAll(mTelecommCall.getChildren());
+        mLastConferenceableCalls.clear();
+        mLastConferenceableCalls.addAll(mTelecommCall.getConferenceableCalls());
+        mLastCannedResponses = mTelecommCall.getCannedTextResponses();
+        mLastVideoCall = mTelecommCall.getVideoCall();
+        return changed;
+    }
+
+    private static boolean areGatewayInfosEqual(GatewayInfo a, GatewayInfo b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return Objects.equals(a.getGatewayProviderPackageName(), b.getGatewayProviderPackageName())
+                && Objects.equals(a.getGatewayAddress(), b.getGatewayAddress())
+                && Objects.equals(a.getOriginalAddress(), b.getOriginalAddress());
+    }
+
+    /**
+     * Shallow comparison of two bundles. A corrupted bundle is treated as changed.
+     */
+    private static boolean areBundlesEqual(Bundle a, Bundle b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        try {
+            if (a.size() != b.size()) {
+                return false;
+            }
+            for (String key : a.keySet()) {
+                if (!b.containsKey(key) || !Objects.equals(a.get(key), b.get(key))) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (RuntimeException e) {
+            Log.d(Call.class.getSimpleName(), "Unable to compare call extras: " + e);
+            return false;
+        }
     }
 
     /**
@@ -459,6 +695,21 @@ public class Call {
         return mId;
     }
 
+    /**
+     * @return A number which increases with every call created by this process; used to order
+     *      calls by creation time.
+     */
+    public int getCreationSequence() {
+        return mCreationSequence;
+    }
+
+    /**
+     * @return The {@link SystemClock#elapsedRealtime} at which this call was added.
+     */
+    public long getCreationTimeMillis() {
+        return mCreationTimeMillis;
+    }
+
     public String getNumber() {
         if (mTelecommCall == null) {
             return null;
@@ -614,6 +865,14 @@ public class Call {
         return mChildCallIds;
     }
 
+    /**
+     * @return A number which changes whenever a child joins or leaves the conference, so callers
+     *      can tell that {@link #getChildCallIds()} is unchanged without comparing the lists.
+     */
+    public int getChildCallIdsVersion() {
+        return mChildCallIdsVersion;
+    }
+
     public String getParentId() {
         android.telecom.Call parentCall = mTelecommCall.getParent();
         if (parentCall != null) {
@@ -650,7 +909,7 @@ public class Call {
 
         Log.d(this, "setSessionModificationTo - mSessionModificationState="
             + mSessionModificationState + " video state= " + videoState);
-        update();
+        update(ChangedFields.SESSION_MODIFICATION);
     }
 
     /**
@@ -718,6 +977,26 @@ public class Call {
         return mSessionModificationState;
     }
 
+    /**
+     * Returns the fields which changed in the most recent update of this call. Valid while
+     * {@link CallList.CallUpdateListener#onCallChanged(Call)} is being dispatched, and lets
+     * listeners rebind only the parts of the UI which depend on those fields.
+     *
+     * @return Bitmask of {@link ChangedFields}.
+     */
+    public int getChangedFields() {
+        return mChangedFields;
+    }
+
+    /**
+     * @return A number which changes whenever an update changed any field of this call, so
+     *      callers can tell whether the call changed since they last looked at it even when
+     *      several updates were coalesced.
+     */
+    public int getUpdateCount() {
+        return mUpdateCount;
+    }
+
     @Override
     public String toString() {
         if (mTelecommCall == null) {
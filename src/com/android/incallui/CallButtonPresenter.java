@@ -48,6 +48,10 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
     private boolean mAutomaticallyMuted = false;
     private boolean mPreviousMuteState = false;
 
+    /** Call list version and in-call state last rendered by {@link #onStateChange}. */
+    private long mRenderedVersion = CallListSnapshot.NO_VERSION;
+    private InCallState mRenderedInCallState;
+
     public CallButtonPresenter() {
     }
 
@@ -66,6 +70,7 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
         inCallPresenter.getInCallCameraManager().addCameraSelectionListener(this);
 
         // Update the buttons state immediately for the current call
+        mRenderedVersion = CallListSnapshot.NO_VERSION;
         onStateChange(InCallState.NO_CALLS, inCallPresenter.getInCallState(),
                 CallList.getInstance());
     }
@@ -86,10 +91,18 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
     public void onStateChange(InCallState oldState, InCallState newState, CallList callList) {
         CallButtonUi ui = getUi();
 
+        final CallListSnapshot snapshot = callList.getSnapshot();
+        if (snapshot.getVersion() == mRenderedVersion && newState == mRenderedInCallState) {
+            Log.v(this, "onStateChange() already rendered version " + mRenderedVersion);
+            return;
+        }
+        mRenderedVersion = snapshot.getVersion();
+        mRenderedInCallState = newState;
+
         if (newState == InCallState.OUTGOING) {
-            mCall = callList.getOutgoingCall();
+            mCall = snapshot.getOutgoingCall();
         } else if (newState == InCallState.INCALL) {
-            mCall = callList.getActiveOrBackgroundCall();
+            mCall = snapshot.getActiveOrBackgroundCall();
 
             // When connected to voice mail, automatically shows the dialpad.
             // (On previous releases we showed it when in-call shows up, before waiting for
@@ -106,7 +119,7 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
             if (ui != null) {
                 ui.displayDialpad(false /* show */, true /* animate */);
             }
-            mCall = callList.getIncomingCall();
+            mCall = snapshot.getIncomingCall();
         } else {
             mCall = null;
         }
@@ -26,6 +26,7 @@ import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.telecom.Call.Details;
 import android.telecom.DisconnectCause;
 import android.telecom.PhoneAccount;
@@ -66,6 +67,20 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
     private static final String TAG = CallCardPresenter.class.getSimpleName();
     private static final long CALL_TIME_UPDATE_INTERVAL_MS = 1000;
 
+    /**
+     * Fields of a call which are displayed by {@link #updatePrimaryCallState()}. Details changes
+     * which only touch other fields do not need to rebind the call state.
+     */
+    private static final int PRIMARY_CALL_STATE_FIELDS = Call.ChangedFields.STATE
+            | Call.ChangedFields.DISCONNECT_CAUSE
+            | Call.ChangedFields.CAPABILITIES
+            | Call.ChangedFields.VIDEO_STATE
+            | Call.ChangedFields.HANDLE
+            | Call.ChangedFields.ACCOUNT
+            | Call.ChangedFields.EXTRAS
+            | Call.ChangedFields.STATUS_HINTS
+            | Call.ChangedFields.SESSION_MODIFICATION;
+
     private final EmergencyCallListener mEmergencyCallListener =
             ObjectFactory.newEmergencyCallListener();
 
@@ -78,6 +93,14 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
     private boolean mSpinnerShowing = false;
     private boolean mHasShownToast = false;
 
+    /** Call list version, in-call state and ui last rendered by {@link #onStateChange}. */
+    private long mRenderedVersion = CallListSnapshot.NO_VERSION;
+    private InCallState mRenderedInCallState;
+    private CallCardUi mRenderedUi;
+
+    /** Id of the last incoming call whose contact name was shown, to report its latency once. */
+    private String mNameShownCallId;
+
     public static class ContactLookupCallback implements ContactInfoCacheCallback {
         private final WeakReference<CallCardPresenter> mCallCardPresenter;
         private final boolean mIsPrimary;
@@ -137,6 +160,7 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
             }
         }
 
+        mRenderedVersion = CallListSnapshot.NO_VERSION;
         onStateChange(null, InCallPresenter.getInstance().getInCallState(), CallList.getInstance());
     }
 
@@ -172,6 +196,8 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
         mPrimary = null;
         mPrimaryContactInfo = null;
         mSecondaryContactInfo = null;
+        mRenderedVersion = CallListSnapshot.NO_VERSION;
+        mRenderedUi = null;
     }
 
     @Override
@@ -188,23 +214,35 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
             return;
         }
 
+        // Read all calls from a single snapshot so they reflect the same call list state, and
+        // skip the update entirely if this exact state was already rendered.
+        final CallListSnapshot snapshot = callList.getSnapshot();
+        if (snapshot.getVersion() == mRenderedVersion && newState == mRenderedInCallState
+                && ui == mRenderedUi) {
+            Log.v(this, "onStateChange() already rendered version " + mRenderedVersion);
+            return;
+        }
+        mRenderedVersion = snapshot.getVersion();
+        mRenderedInCallState = newState;
+        mRenderedUi = ui;
+
         Call primary = null;
         Call secondary = null;
 
         if (newState == InCallState.INCOMING) {
-            primary = callList.getIncomingCall();
+            primary = snapshot.getIncomingCall();
         } else if (newState == InCallState.PENDING_OUTGOING || newState == InCallState.OUTGOING) {
-            primary = callList.getOutgoingCall();
+            primary = snapshot.getOutgoingCall();
             if (primary == null) {
-                primary = callList.getPendingOutgoingCall();
+                primary = snapshot.getPendingOutgoingCall();
             }
 
             // getCallToDisplay doesn't go through outgoing or incoming calls. It will return the
             // highest priority call to display as the secondary call.
-            secondary = getCallToDisplay(callList, null, true);
+            secondary = snapshot.getCallToDisplay(null, true);
         } else if (newState == InCallState.INCALL) {
-            primary = getCallToDisplay(callList, null, false);
-            secondary = getCallToDisplay(callList, primary, true);
+            primary = snapshot.getPrimaryCall();
+            secondary = snapshot.getSecondaryCall();
         }
 
         Log.d(this, "Primary call: " + primary);
@@ -300,7 +338,9 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
 
     @Override
     public void onDetailsChanged(Call call, Details details) {
-        updatePrimaryCallState();
+        if ((call.getChangedFields() & PRIMARY_CALL_STATE_FIELDS) != 0) {
+            updatePrimaryCallState();
+        }
 
         if (call.can(Details.CAPABILITY_MANAGE_CONFERENCE) !=
                 Details.can(details.getCallCapabilities(), Details.CAPABILITY_MANAGE_CONFERENCE)) {
@@ -544,6 +584,12 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
     }
 
     private void onImageLoadComplete(String callId, ContactCacheEntry entry) {
+        // The cache publishes a new entry with the photo, so keep it for later updates.
+        if (mPrimary != null && callId.equals(mPrimary.getId())) {
+            mPrimaryContactInfo = entry;
+        } else if (mSecondary != null && callId.equals(mSecondary.getId())) {
+            mSecondaryContactInfo = entry;
+        }
         if (getUi() == null) {
             return;
         }
@@ -566,45 +612,18 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
     }
 
     /**
-     * Get the highest priority call to display.
-     * Goes through the calls and chooses which to return based on priority of which type of call
-     * to display to the user. Callers can use the "ignore" feature to get the second best call
-     * by passing a previously found primary call as ignore.
-     *
-     * @param ignore A call to ignore if found.
+     * Logs how long after an incoming call was added its caller's name was first shown.
      */
-    private Call getCallToDisplay(CallList callList, Call ignore, boolean skipDisconnected) {
-
-        // Active calls come second.  An active call always gets precedent.
-        Call retval = callList.getActiveCall();
-        if (retval != null && retval != ignore) {
-            return retval;
-        }
-
-        // Disconnected calls get primary position if there are no active calls
-        // to let user know quickly what call has disconnected. Disconnected
-        // calls are very short lived.
-        if (!skipDisconnected) {
-            retval = callList.getDisconnectingCall();
-            if (retval != null && retval != ignore) {
-                return retval;
-            }
-            retval = callList.getDisconnectedCall();
-            if (retval != null && retval != ignore) {
-                return retval;
-            }
-        }
-
-        // Then we go to background call (calls on hold)
-        retval = callList.getBackgroundCall();
-        if (retval != null && retval != ignore) {
-            return retval;
+    private void maybeLogNameShownLatency(Call call) {
+        final int state = call.getState();
+        if ((state != Call.State.INCOMING && state != Call.State.CALL_WAITING)
+                || TextUtils.equals(call.getId(), mNameShownCallId)) {
+            return;
         }
-
-        // Lastly, we go to a second background call.
-        retval = callList.getSecondBackgroundCall();
-
-        return retval;
+        mNameShownCallId = call.getId();
+        final long elapsedMs = SystemClock.elapsedRealtime() - call.getCreationTimeMillis();
+        ContactLookupMetrics.NAME_SHOWN.record(elapsedMs * 1000);
+        Log.i(TAG, "Caller name shown for " + call.getId() + " after " + elapsedMs + "ms");
     }
 
     private void updatePrimaryDisplayInfo() {
@@ -670,6 +689,9 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
                     isChildNumberShown || isCallSubjectShown ? null : mPrimaryContactInfo.label,
                     mPrimaryContactInfo.photo,
                     mPrimaryContactInfo.isSipCall);
+            if (name != null && !nameIsNumber) {
+                maybeLogNameShownLatency(mPrimary);
+            }
         } else {
             // Clear the primary display info.
             ui.setPrimary(null, null, false, null, null, false);
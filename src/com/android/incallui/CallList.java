@@ -16,23 +16,22 @@
 
 package com.android.incallui;
 
-import android.os.Handler;
-import android.os.Message;
 import android.os.Trace;
+import android.view.Choreographer;
 import android.telecom.DisconnectCause;
 import android.telecom.PhoneAccount;
+import android.util.SparseArray;
 
 import com.android.contacts.common.testing.NeededForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Maintains the list of active calls and notifies interested classes of changes to the call list
@@ -45,13 +44,18 @@ public class CallList {
     private static final int DISCONNECTED_CALL_MEDIUM_TIMEOUT_MS = 2000;
     private static final int DISCONNECTED_CALL_LONG_TIMEOUT_MS = 5000;
 
-    private static final int EVENT_DISCONNECTED_TIMEOUT = 1;
-
     private static CallList sInstance = new CallList();
 
     private final HashMap<String, Call> mCallById = new HashMap<>();
     private final HashMap<android.telecom.Call, Call> mCallByTelecommCall = new HashMap<>();
     private final HashMap<String, List<String>> mCallTextReponsesMap = Maps.newHashMap();
+    /**
+     * Calls in the map indexed by the state they had when last passed through
+     * {@link #updateCallInMap}. Each bucket is ordered by call creation so that lookups by
+     * state are O(1) and do not depend on hash iteration order.
+     */
+    private final SparseArray<ArrayList<Call>> mCallsByState = new SparseArray<>();
+    private final HashMap<String, Integer> mIndexedStateById = new HashMap<>();
     /**
      * ConcurrentHashMap constructor params: 8 is initial table size, 0.9f is
      * load factor before resizing, 1 means we only expect a single thread to
@@ -59,10 +63,31 @@ public class CallList {
      */
     private final Set<Listener> mListeners = Collections.newSetFromMap(
             new ConcurrentHashMap<Listener, Boolean>(8, 0.9f, 1));
-    private final HashMap<String, List<CallUpdateListener>> mCallUpdateListenerMap = Maps
-            .newHashMap();
-    private final Set<Call> mPendingDisconnectCalls = Collections.newSetFromMap(
-            new ConcurrentHashMap<Call, Boolean>(8, 0.9f, 1));
+    private final CallUpdateListenerRegistry mCallUpdateListeners =
+            new CallUpdateListenerRegistry();
+
+    /**
+     * Removes disconnected calls once the UI has had a chance to display them. Calls which
+     * expire together are removed with a single listener notification.
+     */
+    private final DisconnectExpiryScheduler mDisconnectExpiry = new DisconnectExpiryScheduler(
+            new DisconnectExpiryScheduler.Callback() {
+                @Override
+                public void onCallsExpired(List<Call> calls) {
+                    finishDisconnectedCalls(calls);
+                }
+            });
+
+    /**
+     * Changes accumulated since listeners were last notified. Updates are coalesced and
+     * dispatched once per frame; see {@link #scheduleGenericNotification()}.
+     */
+    private CallListDelta mPendingDelta = new CallListDelta();
+    private boolean mIsGenericNotificationScheduled = false;
+
+    /** Incremented every time a call is added, removed or updated. */
+    private long mVersion = 0;
+    private CallListSnapshot mSnapshot;
 
     /**
      * Static singleton accessor method.
@@ -80,8 +105,15 @@ public class CallList {
     }
 
     public void onCallAdded(android.telecom.Call telecommCall) {
+        onCallAdded(new Call(telecommCall));
+    }
+
+    /**
+     * Adds a call which was already created for a new Telecom call, so that work for the call
+     * can start before the listeners are told about it.
+     */
+    public void onCallAdded(Call call) {
         Trace.beginSection("onCallAdded");
-        Call call = new Call(telecommCall);
         Log.d(this, "onCallAdded: callState=" + call.getState());
         if (call.getState() == Call.State.INCOMING ||
                 call.getState() == Call.State.CALL_WAITING) {
@@ -95,10 +127,21 @@ public class CallList {
     public void onCallRemoved(android.telecom.Call telecommCall) {
         if (mCallByTelecommCall.containsKey(telecommCall)) {
             Call call = mCallByTelecommCall.get(telecommCall);
-            if (updateCallInMap(call)) {
+            final boolean updated = updateCallInMap(call);
+            if (updated) {
                 Log.w(this, "Removing call not previously disconnected " + call.getId());
             }
             updateCallTextMap(call, null);
+            evictCallUpdateListeners(call);
+            // Only a disconnected call which is still shown may expire later.
+            if (call.getState() != Call.State.DISCONNECTED
+                    || !mCallById.containsKey(call.getId())) {
+                mDisconnectExpiry.cancel(call);
+            }
+            if (updated) {
+                // Deliver the removal right away, along with any coalesced updates before it.
+                notifyGenericListeners();
+            }
         }
     }
 
@@ -106,6 +149,9 @@ public class CallList {
      * Called when a single call disconnects.
      */
     public void onDisconnect(Call call) {
+        // Disconnects are dispatched immediately; deliver any coalesced updates first so that
+        // listeners observe changes in the order they happened.
+        flushPendingGenericNotification();
         if (updateCallInMap(call)) {
             Log.i(this, "onDisconnect: " + call);
             // notify those listening for changes on this specific change
@@ -119,6 +165,7 @@ public class CallList {
      * Called when a single call has changed.
      */
     public void onIncoming(Call call, List<String> textMessages) {
+        flushPendingGenericNotification();
         if (updateCallInMap(call)) {
             Log.i(this, "onIncoming - " + call);
         }
@@ -136,12 +183,13 @@ public class CallList {
         }
     }
     /**
-     * Called when a single call has changed.
+     * Called when a single call has changed. Listeners are notified on the next frame, together
+     * with any other updates received in the meantime.
      */
     public void onUpdate(Call call) {
         Trace.beginSection("onUpdate");
         onUpdateCall(call);
-        notifyGenericListeners();
+        scheduleGenericNotification();
         Trace.endSection();
     }
 
@@ -152,11 +200,9 @@ public class CallList {
      * @param sessionModificationState The new session modification state.
      */
     public void onSessionModificationStateChange(Call call, int sessionModificationState) {
-        final List<CallUpdateListener> listeners = mCallUpdateListenerMap.get(call.getId());
-        if (listeners != null) {
-            for (CallUpdateListener listener : listeners) {
-                listener.onSessionModificationStateChange(sessionModificationState);
-            }
+        final CallUpdateListener[] listeners = mCallUpdateListeners.get(call.getId());
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onSessionModificationStateChange(sessionModificationState);
         }
     }
 
@@ -168,11 +214,9 @@ public class CallList {
      * @param call The call.
      */
     public void onLastForwardedNumberChange(Call call) {
-        final List<CallUpdateListener> listeners = mCallUpdateListenerMap.get(call.getId());
-        if (listeners != null) {
-            for (CallUpdateListener listener : listeners) {
-                listener.onLastForwardedNumberChange();
-            }
+        final CallUpdateListener[] listeners = mCallUpdateListeners.get(call.getId());
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onLastForwardedNumberChange();
         }
     }
 
@@ -183,20 +227,16 @@ public class CallList {
      * @param call The call.
      */
     public void onChildNumberChange(Call call) {
-        final List<CallUpdateListener> listeners = mCallUpdateListenerMap.get(call.getId());
-        if (listeners != null) {
-            for (CallUpdateListener listener : listeners) {
-                listener.onChildNumberChange();
-            }
+        final CallUpdateListener[] listeners = mCallUpdateListeners.get(call.getId());
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onChildNumberChange();
         }
     }
 
     public void notifyCallUpdateListeners(Call call) {
-        final List<CallUpdateListener> listeners = mCallUpdateListenerMap.get(call.getId());
-        if (listeners != null) {
-            for (CallUpdateListener listener : listeners) {
-                listener.onCallChanged(call);
-            }
+        final CallUpdateListener[] listeners = mCallUpdateListeners.get(call.getId());
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onCallChanged(call);
         }
     }
 
@@ -207,12 +247,7 @@ public class CallList {
      * @param listener The listener to add.
      */
     public void addCallUpdateListener(String callId, CallUpdateListener listener) {
-        List<CallUpdateListener> listeners = mCallUpdateListenerMap.get(callId);
-        if (listeners == null) {
-            listeners = new CopyOnWriteArrayList<CallUpdateListener>();
-            mCallUpdateListenerMap.put(callId, listeners);
-        }
-        listeners.add(listener);
+        mCallUpdateListeners.add(callId, listener);
     }
 
     /**
@@ -222,9 +257,24 @@ public class CallList {
      * @param listener The listener to remove.
      */
     public void removeCallUpdateListener(String callId, CallUpdateListener listener) {
-        List<CallUpdateListener> listeners = mCallUpdateListenerMap.get(callId);
-        if (listeners != null) {
-            listeners.remove(listener);
+        mCallUpdateListeners.remove(callId, listener);
+    }
+
+    /**
+     * @return The number of calls which have call update listeners registered. Entries are
+     *      evicted when their call is removed, so this should never exceed the number of calls.
+     */
+    public int getCallUpdateListenerEntryCount() {
+        return mCallUpdateListeners.size();
+    }
+
+    /**
+     * Drops the call update listeners of a call which is no longer tracked.
+     */
+    private void evictCallUpdateListeners(Call call) {
+        final int leftover = mCallUpdateListeners.evict(call.getId());
+        if (leftover > 0) {
+            Log.d(this, "Evicted " + leftover + " update listeners for " + call.getId());
         }
     }
 
@@ -234,7 +284,11 @@ public class CallList {
         mListeners.add(listener);
 
         // Let the listener know about the active calls immediately.
-        listener.onCallListChange(this);
+        final CallListDelta delta = new CallListDelta();
+        for (Call call : mCallById.values()) {
+            delta.onCallAdded(call);
+        }
+        listener.onCallListChange(this, delta);
     }
 
     public void removeListener(Listener listener) {
@@ -371,6 +425,24 @@ public class CallList {
         return mCallByTelecommCall.get(telecommCall);
     }
 
+    /**
+     * Returns an immutable snapshot of the current calls of interest. Snapshots are built lazily,
+     * at most once per version, and shared by all readers of that version.
+     */
+    public CallListSnapshot getSnapshot() {
+        if (mSnapshot == null || mSnapshot.getVersion() != mVersion) {
+            mSnapshot = new CallListSnapshot(this, mVersion);
+        }
+        return mSnapshot;
+    }
+
+    /**
+     * @return A number which increases every time a call is added, removed or updated.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
     public List<String> getTextResponses(String callId) {
         return mCallTextReponsesMap.get(callId);
     }
@@ -383,24 +455,14 @@ public class CallList {
     }
 
     /**
-     * Returns the [position]th call found in the call map with the specified state.
-     * TODO: Improve this logic to sort by call time.
+     * Returns the [position]th call with the specified state, ordered by call creation time.
      */
     public Call getCallWithState(int state, int positionToFind) {
-        Call retval = null;
-        int position = 0;
-        for (Call call : mCallById.values()) {
-            if (call.getState() == state) {
-                if (position >= positionToFind) {
-                    retval = call;
-                    break;
-                } else {
-                    position++;
-                }
-            }
+        final ArrayList<Call> calls = mCallsByState.get(state);
+        if (calls == null || positionToFind < 0 || positionToFind >= calls.size()) {
+            return null;
         }
-
-        return retval;
+        return calls.get(positionToFind);
     }
 
     /**
@@ -429,11 +491,8 @@ public class CallList {
      * the disconnect cause, and that any pending disconnects should immediately occur.
      */
     public void onErrorDialogDismissed() {
-        final Iterator<Call> iterator = mPendingDisconnectCalls.iterator();
-        while (iterator.hasNext()) {
-            Call call = iterator.next();
-            iterator.remove();
-            finishDisconnectedCall(call);
+        if (mDisconnectExpiry.size() > 0) {
+            finishDisconnectedCalls(mDisconnectExpiry.cancelAll());
         }
     }
 
@@ -452,15 +511,54 @@ public class CallList {
     }
 
     /**
-     * Sends a generic notification to all listeners that something has changed.
-     * It is up to the listeners to call back to determine what changed.
+     * Sends a generic notification to all listeners that something has changed, along with the
+     * {@link CallListDelta} accumulated since the previous notification. Cancels any pending
+     * frame-aligned notification, since it is delivered by this call.
      */
     private void notifyGenericListeners() {
+        if (mIsGenericNotificationScheduled) {
+            Choreographer.getInstance().removeFrameCallback(mGenericNotificationCallback);
+            mIsGenericNotificationScheduled = false;
+        }
+        final CallListDelta delta = mPendingDelta;
+        mPendingDelta = new CallListDelta();
+
+        Trace.beginSection("notifyGenericListeners");
         for (Listener listener : mListeners) {
-            listener.onCallListChange(this);
+            listener.onCallListChange(this, delta);
         }
+        Trace.endSection();
     }
 
+    /**
+     * Coalesces a burst of updates (e.g. during a conference merge or a hold/swap) into a single
+     * notification delivered on the next frame.
+     */
+    private void scheduleGenericNotification() {
+        if (!mIsGenericNotificationScheduled) {
+            mIsGenericNotificationScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mGenericNotificationCallback);
+        }
+    }
+
+    /**
+     * Immediately delivers a notification which is waiting for the next frame, if any.
+     */
+    private void flushPendingGenericNotification() {
+        if (mIsGenericNotificationScheduled) {
+            notifyGenericListeners();
+        }
+    }
+
+    private final Choreographer.FrameCallback mGenericNotificationCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    mIsGenericNotificationScheduled = false;
+                    notifyGenericListeners();
+                }
+            };
+
     private void notifyListenersOfDisconnect(Call call) {
         for (Listener listener : mListeners) {
             listener.onDisconnect(call);
@@ -482,28 +580,99 @@ public class CallList {
                 // For disconnected calls, we want to keep them alive for a few seconds so that the
                 // UI has a chance to display anything it needs when a call is disconnected.
 
-                // Set up a timer to destroy the call after X seconds.
-                final Message msg = mHandler.obtainMessage(EVENT_DISCONNECTED_TIMEOUT, call);
-                mHandler.sendMessageDelayed(msg, getDelayForDisconnect(call));
-                mPendingDisconnectCalls.add(call);
+                // Set up a timer to destroy the call after X seconds. Trailing updates to an
+                // already disconnected call keep the deadline set by the first one, unless they
+                // bring a new cause which is shown for longer.
+                final int delay = getDelayForDisconnect(call);
+                if (!mDisconnectExpiry.schedule(call, delay) && (call.getChangedFields()
+                        & Call.ChangedFields.DISCONNECT_CAUSE) != 0) {
+                    mDisconnectExpiry.extend(call, delay);
+                }
 
                 mCallById.put(call.getId(), call);
                 mCallByTelecommCall.put(call.getTelecommCall(), call);
+                recordCallChange(call, false /* isNewCall */, indexCallState(call));
                 updated = true;
             }
         } else if (!isCallDead(call)) {
+            final boolean isNewCall = !mCallById.containsKey(call.getId());
             mCallById.put(call.getId(), call);
             mCallByTelecommCall.put(call.getTelecommCall(), call);
+            recordCallChange(call, isNewCall, indexCallState(call));
             updated = true;
         } else if (mCallById.containsKey(call.getId())) {
+            mDisconnectExpiry.cancel(call);
             mCallById.remove(call.getId());
             mCallByTelecommCall.remove(call.getTelecommCall());
+            removeCallStateIndex(call);
+            mPendingDelta.onCallRemoved(call);
+            ContactsAsyncHelper.cancelPhotoLoads(call.getId());
             updated = true;
         }
 
+        if (updated) {
+            mVersion++;
+        }
         return updated;
     }
 
+    private void recordCallChange(Call call, boolean isNewCall, boolean stateChanged) {
+        if (isNewCall) {
+            mPendingDelta.onCallAdded(call);
+        } else if (stateChanged) {
+            mPendingDelta.onCallStateChanged(call);
+        } else {
+            mPendingDelta.onCallUpdated(call);
+        }
+    }
+
+    /**
+     * Moves the call into the state index bucket matching its current state, keeping each bucket
+     * sorted by call creation.
+     *
+     * @return {@code true} if the indexed state of the call changed.
+     */
+    private boolean indexCallState(Call call) {
+        final int state = call.getState();
+        final Integer indexedState = mIndexedStateById.get(call.getId());
+        if (indexedState != null) {
+            if (indexedState == state) {
+                return false;
+            }
+            removeCallStateIndex(call);
+        }
+
+        ArrayList<Call> calls = mCallsByState.get(state);
+        if (calls == null) {
+            calls = new ArrayList<>(2);
+            mCallsByState.put(state, calls);
+        }
+        int position = calls.size();
+        while (position > 0 && calls.get(position - 1).getCreationSequence()
+                > call.getCreationSequence()) {
+            position--;
+        }
+        calls.add(position, call);
+        mIndexedStateById.put(call.getId(), state);
+        return true;
+    }
+
+    private void removeCallStateIndex(Call call) {
+        final Integer indexedState = mIndexedStateById.remove(call.getId());
+        if (indexedState == null) {
+            return;
+        }
+        final ArrayList<Call> calls = mCallsByState.get(indexedState);
+        if (calls != null) {
+            for (int i = 0; i < calls.size(); i++) {
+                if (calls.get(i).getId().equals(call.getId())) {
+                    calls.remove(i);
+                    break;
+                }
+            }
+        }
+    }
+
     private int getDelayForDisconnect(Call call) {
         Preconditions.checkState(call.getState() == Call.State.DISCONNECTED);
 
@@ -550,14 +719,23 @@ public class CallList {
     }
 
     /**
-     * Sets up a call for deletion and notifies listeners of change.
+     * Sets up a call for deletion. Listeners are not notified; see
+     * {@link #finishDisconnectedCalls}.
      */
     private void finishDisconnectedCall(Call call) {
-        if (mPendingDisconnectCalls.contains(call)) {
-            mPendingDisconnectCalls.remove(call);
-        }
+        mDisconnectExpiry.cancel(call);
         call.setState(Call.State.IDLE);
         updateCallInMap(call);
+        evictCallUpdateListeners(call);
+    }
+
+    /**
+     * Sets up a batch of calls for deletion and notifies listeners of the change once.
+     */
+    private void finishDisconnectedCalls(List<Call> calls) {
+        for (int i = 0; i < calls.size(); i++) {
+            finishDisconnectedCall(calls.get(i));
+        }
         notifyGenericListeners();
     }
 
@@ -579,24 +757,6 @@ public class CallList {
         }
     }
 
-    /**
-     * Handles the timeout for destroying disconnected calls.
-     */
-    private Handler mHandler = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case EVENT_DISCONNECTED_TIMEOUT:
-                    Log.d(this, "EVENT_DISCONNECTED_TIMEOUT ", msg.obj);
-                    finishDisconnectedCall((Call) msg.obj);
-                    break;
-                default:
-                    Log.wtf(this, "Message not expected: " + msg.what);
-                    break;
-            }
-        }
-    };
-
     /**
      * Listener interface for any class that wants to be notified of changes
      * to the call list.
@@ -620,8 +780,13 @@ public class CallList {
          * states, updating information, etc. This method will NOT be called for new incoming
          * calls and for calls that switch to disconnected state. Listeners must add actions
          * to those method implementations if they want to deal with those actions.
+         *
+         * Updates which arrive in a burst are coalesced into a single call on the next frame.
+         *
+         * @param callList The call list.
+         * @param delta The calls which were added, removed or updated since the previous call.
          */
-        public void onCallListChange(CallList callList);
+        public void onCallListChange(CallList callList, CallListDelta delta);
 
         /**
          * Called when a call switches to the disconnected state.  This is the only method
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes what changed in the {@link CallList} since the last time its listeners were notified.
+ * Several call updates received in a burst are merged into a single delta, so a call appears at
+ * most once in each of the lists.
+ */
+public class CallListDelta {
+
+    private final ArrayList<Call> mAddedCalls = new ArrayList<>(2);
+    private final ArrayList<Call> mRemovedCalls = new ArrayList<>(2);
+    private final ArrayList<Call> mStateChangedCalls = new ArrayList<>(2);
+    private final ArrayList<Call> mUpdatedCalls = new ArrayList<>(2);
+
+    /**
+     * @return Calls which were added to the call list.
+     */
+    public List<Call> getAddedCalls() {
+        return Collections.unmodifiableList(mAddedCalls);
+    }
+
+    /**
+     * @return Calls which were removed from the call list.
+     */
+    public List<Call> getRemovedCalls() {
+        return Collections.unmodifiableList(mRemovedCalls);
+    }
+
+    /**
+     * @return Calls already in the call list whose {@link Call.State} changed.
+     */
+    public List<Call> getStateChangedCalls() {
+        return Collections.unmodifiableList(mStateChangedCalls);
+    }
+
+    /**
+     * @return Every call which received an update, whether or not its state changed.
+     */
+    public List<Call> getUpdatedCalls() {
+        return Collections.unmodifiableList(mUpdatedCalls);
+    }
+
+    /**
+     * @return {@code true} if the membership of the call list or the state of any call changed.
+     */
+    public boolean hasStructuralChanges() {
+        return !mAddedCalls.isEmpty() || !mRemovedCalls.isEmpty()
+                || !mStateChangedCalls.isEmpty();
+    }
+
+    public boolean isEmpty() {
+        return !hasStructuralChanges() && mUpdatedCalls.isEmpty();
+    }
+
+    /* package */ void onCallAdded(Call call) {
+        mRemovedCalls.remove(call);
+        addIfAbsent(mAddedCalls, call);
+        addIfAbsent(mUpdatedCalls, call);
+    }
+
+    /* package */ void onCallRemoved(Call call) {
+        mUpdatedCalls.remove(call);
+        mStateChangedCalls.remove(call);
+        if (!mAddedCalls.remove(call)) {
+            // A call which was both added and removed within one burst is not reported at all.
+            addIfAbsent(mRemovedCalls, call);
+        }
+    }
+
+    /* package */ void onCallStateChanged(Call call) {
+        if (!mAddedCalls.contains(call)) {
+            addIfAbsent(mStateChangedCalls, call);
+        }
+        addIfAbsent(mUpdatedCalls, call);
+    }
+
+    /* package */ void onCallUpdated(Call call) {
+        addIfAbsent(mUpdatedCalls, call);
+    }
+
+    private static void addIfAbsent(List<Call> calls, Call call) {
+        if (!calls.contains(call)) {
+            calls.add(call);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CallListDelta[added:" + mAddedCalls + ", removed:" + mRemovedCalls
+                + ", stateChanged:" + mStateChangedCalls + ", updated:" + mUpdatedCalls + "]";
+    }
+}
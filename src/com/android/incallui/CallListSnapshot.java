@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+/**
+ * Immutable view of the calls of interest in the {@link CallList} at a given version. Presenters
+ * which read several calls while handling one state change should read them from a single
+ * snapshot so that they all observe the same state, and can compare {@link #getVersion()} with the
+ * version they last rendered to skip redundant work.
+ *
+ * Obtain instances through {@link CallList#getSnapshot()}. A snapshot is shared by every reader
+ * of the same version, so only the version should be retained across notifications.
+ */
+public final class CallListSnapshot {
+
+    /** Version which never matches a published snapshot. */
+    public static final long NO_VERSION = -1;
+
+    private final long mVersion;
+    private final Call mIncomingCall;
+    private final Call mWaitingForAccountCall;
+    private final Call mPendingOutgoingCall;
+    private final Call mOutgoingCall;
+    private final Call mActiveCall;
+    private final Call mBackgroundCall;
+    private final Call mSecondBackgroundCall;
+    private final Call mDisconnectingCall;
+    private final Call mDisconnectedCall;
+    private final Call mPrimaryCall;
+    private final Call mSecondaryCall;
+
+    /* package */ CallListSnapshot(CallList callList, long version) {
+        mVersion = version;
+        mIncomingCall = callList.getIncomingCall();
+        mWaitingForAccountCall = callList.getWaitingForAccountCall();
+        mPendingOutgoingCall = callList.getPendingOutgoingCall();
+        mOutgoingCall = callList.getOutgoingCall();
+        mActiveCall = callList.getActiveCall();
+        mBackgroundCall = callList.getBackgroundCall();
+        mSecondBackgroundCall = callList.getSecondBackgroundCall();
+        mDisconnectingCall = callList.getDisconnectingCall();
+        mDisconnectedCall = callList.getDisconnectedCall();
+
+        mPrimaryCall = getCallToDisplay(null, false);
+        mSecondaryCall = getCallToDisplay(mPrimaryCall, true);
+    }
+
+    /**
+     * Returns the highest priority connected call, in the order active, disconnecting,
+     * disconnected, held and second held.
+     *
+     * @param ignore A call which should not be returned.
+     * @param skipDisconnected Whether disconnecting and disconnected calls should be skipped.
+     */
+    public Call getCallToDisplay(Call ignore, boolean skipDisconnected) {
+        if (mActiveCall != null && mActiveCall != ignore) {
+            return mActiveCall;
+        }
+        if (!skipDisconnected) {
+            if (mDisconnectingCall != null && mDisconnectingCall != ignore) {
+                return mDisconnectingCall;
+            }
+            if (mDisconnectedCall != null && mDisconnectedCall != ignore) {
+                return mDisconnectedCall;
+            }
+        }
+        if (mBackgroundCall != null && mBackgroundCall != ignore) {
+            return mBackgroundCall;
+        }
+        return mSecondBackgroundCall;
+    }
+
+    /**
+     * @return A number which increases every time the call list changes.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public Call getIncomingCall() {
+        return mIncomingCall;
+    }
+
+    public Call getWaitingForAccountCall() {
+        return mWaitingForAccountCall;
+    }
+
+    public Call getPendingOutgoingCall() {
+        return mPendingOutgoingCall;
+    }
+
+    public Call getOutgoingCall() {
+        return mOutgoingCall;
+    }
+
+    public Call getActiveCall() {
+        return mActiveCall;
+    }
+
+    public Call getBackgroundCall() {
+        return mBackgroundCall;
+    }
+
+    public Call getActiveOrBackgroundCall() {
+        return mActiveCall != null ? mActiveCall : mBackgroundCall;
+    }
+
+    public Call getDisconnectingCall() {
+        return mDisconnectingCall;
+    }
+
+    public Call getDisconnectedCall() {
+        return mDisconnectedCall;
+    }
+
+    /**
+     * @return The connected call to show most prominently: the active call, else a disconnecting
+     *      or disconnected call, else a held call.
+     */
+    public Call getPrimaryCall() {
+        return mPrimaryCall;
+    }
+
+    /**
+     * @return The connected call to show besides {@link #getPrimaryCall()}, never a disconnecting
+     *      or disconnected call.
+     */
+    public Call getSecondaryCall() {
+        return mSecondaryCall;
+    }
+
+    @Override
+    public String toString() {
+        return "CallListSnapshot[version:" + mVersion + ", primary:" + mPrimaryCall
+                + ", secondary:" + mSecondaryCall + ", incoming:" + mIncomingCall
+                + ", outgoing:" + mOutgoingCall + "]";
+    }
+}
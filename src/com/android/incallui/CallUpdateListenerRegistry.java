@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import com.android.incallui.CallList.CallUpdateListener;
+
+import java.util.HashMap;
+
+/**
+ * Per-call registry of {@link CallUpdateListener}s.
+ *
+ * Listeners for a call are stored in a copy-on-write array, so listeners may add or remove
+ * themselves while being notified and dispatch can iterate without allocating. An entry exists
+ * only while its call has listeners and is dropped as soon as the call is evicted, so the number
+ * of entries is bounded by the number of live calls.
+ */
+/* package */ class CallUpdateListenerRegistry {
+
+    private static final CallUpdateListener[] NO_LISTENERS = new CallUpdateListener[0];
+
+    private final HashMap<String, CallUpdateListener[]> mListenersByCallId = new HashMap<>();
+
+    /**
+     * Returns the listeners registered for a call. The returned array is never modified after it
+     * is published, but it must not be modified by the caller either.
+     */
+    public CallUpdateListener[] get(String callId) {
+        final CallUpdateListener[] listeners = mListenersByCallId.get(callId);
+        return listeners != null ? listeners : NO_LISTENERS;
+    }
+
+    public void add(String callId, CallUpdateListener listener) {
+        final CallUpdateListener[] listeners = get(callId);
+        final CallUpdateListener[] updated = new CallUpdateListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, updated, 0, listeners.length);
+        updated[listeners.length] = listener;
+        mListenersByCallId.put(callId, updated);
+    }
+
+    public void remove(String callId, CallUpdateListener listener) {
+        final CallUpdateListener[] listeners = get(callId);
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                if (listeners.length == 1) {
+                    mListenersByCallId.remove(callId);
+                    return;
+                }
+                final CallUpdateListener[] updated = new CallUpdateListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, updated, 0, i);
+                System.arraycopy(listeners, i + 1, updated, i, listeners.length - i - 1);
+                mListenersByCallId.put(callId, updated);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops all listeners for a call which is no longer tracked.
+     *
+     * @return The number of listeners which were still registered.
+     */
+    public int evict(String callId) {
+        final CallUpdateListener[] listeners = mListenersByCallId.remove(callId);
+        return listeners != null ? listeners.length : 0;
+    }
+
+    /**
+     * @return The number of calls which currently have listeners.
+     */
+    public int size() {
+        return mListenersByCallId.size();
+    }
+}
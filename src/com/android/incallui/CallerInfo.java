@@ -23,6 +23,8 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
@@ -30,12 +32,14 @@ import android.provider.ContactsContract.PhoneLookup;
 import android.provider.ContactsContract.RawContacts;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import com.google.i18n.phonenumbers.geocoding.PhoneNumberOfflineGeocoder;
 import com.google.i18n.phonenumbers.NumberParseException;
 import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import com.google.i18n.phonenumbers.Phonenumber.PhoneNumber;
 
+import java.util.Arrays;
 import java.util.Locale;
 
 /**
@@ -46,6 +50,16 @@ import java.util.Locale;
 public class CallerInfo {
     private static final String TAG = "CallerInfo";
 
+    /**
+     * Geo descriptions of recently looked up numbers, keyed by country ISO, locale and number.
+     * An empty string records that the number has no description. Also guards the warm-up
+     * flags below.
+     */
+    private static final LruCache<String, String> sGeoDescriptions = new LruCache<>(64);
+    private static boolean sGeocoderWarmUpStarted;
+    /** Whether the geocoding data was loaded, either by the warm-up or by a lookup. */
+    private static boolean sGeocoderWarm;
+
     /**
      * Please note that, any one of these member variables can be null,
      * and any accesses to them should be prepared to handle such a case.
@@ -103,6 +117,12 @@ public class CallerInfo {
      */
     public Uri contactDisplayPhotoUri;
 
+    /**
+     * Contact thumbnail photo URI, which is much faster to load than
+     * {@link #contactDisplayPhotoUri}.
+     */
+    public Uri contactThumbnailUri;
+
     // fields to hold individual contact preference data,
     // including the send to voicemail flag and the ringtone
     // uri reference.
@@ -150,12 +170,128 @@ public class CallerInfo {
     private boolean mIsEmergency;
     private boolean mIsVoiceMail;
 
+    /**
+     * The only columns read from a {@link PhoneLookup} query. Queries should request this
+     * projection so that the provider does not return every column, and so that
+     * {@link #getCallerInfo(Context, Uri, Cursor)} can read the columns at fixed indices.
+     */
+    public static final String[] PHONE_LOOKUP_PROJECTION = new String[] {
+            PhoneLookup._ID,
+            PhoneLookup.DISPLAY_NAME,
+            PhoneLookup.NUMBER,
+            PhoneLookup.NORMALIZED_NUMBER,
+            PhoneLookup.LABEL,
+            PhoneLookup.TYPE,
+            PhoneLookup.LOOKUP_KEY,
+            PhoneLookup.PHOTO_URI,
+            PhoneLookup.CUSTOM_RINGTONE,
+            PhoneLookup.SEND_TO_VOICEMAIL,
+            PhoneLookup.PHOTO_THUMBNAIL_URI,
+    };
+
+    /**
+     * Indices of the columns read by {@link #getCallerInfo(Context, Uri, Cursor)}, or -1 for
+     * columns which the cursor does not have.
+     */
+    /* package */ static final class ColumnLayout {
+        /** The layout of a cursor queried with {@link #PHONE_LOOKUP_PROJECTION}. */
+        private static final ColumnLayout PHONE_LOOKUP = new ColumnLayout(0, 1, 2, 3, 4, 5, 6, 7,
+                8, 9, 10);
+
+        final int personId;
+        final int name;
+        final int number;
+        final int normalizedNumber;
+        final int label;
+        final int type;
+        final int lookupKey;
+        final int photoUri;
+        final int customRingtone;
+        final int sendToVoicemail;
+        final int thumbnailUri;
+
+        private ColumnLayout(int personId, int name, int number, int normalizedNumber, int label,
+                int type, int lookupKey, int photoUri, int customRingtone,
+                int sendToVoicemail, int thumbnailUri) {
+            this.personId = personId;
+            this.name = name;
+            this.number = number;
+            this.normalizedNumber = normalizedNumber;
+            this.label = label;
+            this.type = type;
+            this.lookupKey = lookupKey;
+            this.photoUri = photoUri;
+            this.customRingtone = customRingtone;
+            this.sendToVoicemail = sendToVoicemail;
+            this.thumbnailUri = thumbnailUri;
+        }
+
+        /**
+         * Returns the precomputed layout if the cursor was queried with
+         * {@link #PHONE_LOOKUP_PROJECTION}, or else looks up each column by name.
+         */
+        static ColumnLayout forCursor(Uri contactRef, Cursor cursor) {
+            if (isPhoneLookupUri(contactRef)
+                    && Arrays.equals(PHONE_LOOKUP_PROJECTION, cursor.getColumnNames())) {
+                return PHONE_LOOKUP;
+            }
+            return new ColumnLayout(
+                    getColumnIndexForPersonId(contactRef, cursor),
+                    cursor.getColumnIndex(PhoneLookup.DISPLAY_NAME),
+                    cursor.getColumnIndex(PhoneLookup.NUMBER),
+                    cursor.getColumnIndex(PhoneLookup.NORMALIZED_NUMBER),
+                    cursor.getColumnIndex(PhoneLookup.LABEL),
+                    cursor.getColumnIndex(PhoneLookup.TYPE),
+                    cursor.getColumnIndex(PhoneLookup.LOOKUP_KEY),
+                    cursor.getColumnIndex(PhoneLookup.PHOTO_URI),
+                    cursor.getColumnIndex(PhoneLookup.CUSTOM_RINGTONE),
+                    cursor.getColumnIndex(PhoneLookup.SEND_TO_VOICEMAIL),
+                    cursor.getColumnIndex(PhoneLookup.PHOTO_THUMBNAIL_URI));
+        }
+    }
+
     public CallerInfo() {
         // TODO: Move all the basic initialization here?
         mIsEmergency = false;
         mIsVoiceMail = false;
     }
 
+    /**
+     * @return A copy of this CallerInfo, for a listener which may modify it while another
+     *      listener holds the original.
+     */
+    /* package */ CallerInfo copy() {
+        final CallerInfo info = new CallerInfo();
+        info.name = name;
+        info.phoneNumber = phoneNumber;
+        info.normalizedNumber = normalizedNumber;
+        info.forwardingNumber = forwardingNumber;
+        info.geoDescription = geoDescription;
+        info.cnapName = cnapName;
+        info.numberPresentation = numberPresentation;
+        info.namePresentation = namePresentation;
+        info.contactExists = contactExists;
+        info.phoneLabel = phoneLabel;
+        info.numberType = numberType;
+        info.numberLabel = numberLabel;
+        info.photoResource = photoResource;
+        info.contactIdOrZero = contactIdOrZero;
+        info.lookupKeyOrNull = lookupKeyOrNull;
+        info.needUpdate = needUpdate;
+        info.contactRefUri = contactRefUri;
+        info.contactDisplayPhotoUri = contactDisplayPhotoUri;
+        info.contactThumbnailUri = contactThumbnailUri;
+        info.contactRingtoneUri = contactRingtoneUri;
+        info.shouldSendToVoicemail = shouldSendToVoicemail;
+        info.cachedPhoto = cachedPhoto;
+        info.cachedPhotoIcon = cachedPhotoIcon;
+        info.isCachedPhotoCurrent = isCachedPhotoCurrent;
+        info.callSubject = callSubject;
+        info.mIsEmergency = mIsEmergency;
+        info.mIsVoiceMail = mIsVoiceMail;
+        return info;
+    }
+
     /**
      * getCallerInfo given a Cursor.
      * @param context the context used to retrieve string constants
@@ -182,51 +318,37 @@ public class CallerInfo {
                 // care of here. Maybe we should store it in the
                 // CallerInfo object as well.
 
-                int columnIndex;
+                final ColumnLayout columns = ColumnLayout.forCursor(contactRef, cursor);
 
-                // Look for the name
-                columnIndex = cursor.getColumnIndex(PhoneLookup.DISPLAY_NAME);
-                if (columnIndex != -1) {
-                    info.name = cursor.getString(columnIndex);
+                if (columns.name != -1) {
+                    info.name = cursor.getString(columns.name);
                 }
-
-                // Look for the number
-                columnIndex = cursor.getColumnIndex(PhoneLookup.NUMBER);
-                if (columnIndex != -1) {
-                    info.phoneNumber = cursor.getString(columnIndex);
+                if (columns.number != -1) {
+                    info.phoneNumber = cursor.getString(columns.number);
                 }
-
-                // Look for the normalized number
-                columnIndex = cursor.getColumnIndex(PhoneLookup.NORMALIZED_NUMBER);
-                if (columnIndex != -1) {
-                    info.normalizedNumber = cursor.getString(columnIndex);
+                if (columns.normalizedNumber != -1) {
+                    info.normalizedNumber = cursor.getString(columns.normalizedNumber);
                 }
 
                 // Look for the label/type combo
-                columnIndex = cursor.getColumnIndex(PhoneLookup.LABEL);
-                if (columnIndex != -1) {
-                    int typeColumnIndex = cursor.getColumnIndex(PhoneLookup.TYPE);
-                    if (typeColumnIndex != -1) {
-                        info.numberType = cursor.getInt(typeColumnIndex);
-                        info.numberLabel = cursor.getString(columnIndex);
-                        info.phoneLabel = Phone.getTypeLabel(context.getResources(),
-                                info.numberType, info.numberLabel)
-                                .toString();
-                    }
+                if (columns.label != -1 && columns.type != -1) {
+                    info.numberType = cursor.getInt(columns.type);
+                    info.numberLabel = cursor.getString(columns.label);
+                    info.phoneLabel = Phone.getTypeLabel(context.getResources(),
+                            info.numberType, info.numberLabel)
+                            .toString();
                 }
 
                 // Look for the person_id.
-                columnIndex = getColumnIndexForPersonId(contactRef, cursor);
-                if (columnIndex != -1) {
-                    final long contactId = cursor.getLong(columnIndex);
+                if (columns.personId != -1) {
+                    final long contactId = cursor.getLong(columns.personId);
                     if (contactId != 0 && !Contacts.isEnterpriseContactId(contactId)) {
                         info.contactIdOrZero = contactId;
                         Log.v(TAG, "==> got info.contactIdOrZero: " + info.contactIdOrZero);
 
                         // cache the lookup key for later use with person_id to create lookup URIs
-                        columnIndex = cursor.getColumnIndex(PhoneLookup.LOOKUP_KEY);
-                        if (columnIndex != -1) {
-                            info.lookupKeyOrNull = cursor.getString(columnIndex);
+                        if (columns.lookupKey != -1) {
+                            info.lookupKeyOrNull = cursor.getString(columns.lookupKey);
                         }
                     }
                 } else {
@@ -238,27 +360,23 @@ public class CallerInfo {
                 }
 
                 // Display photo URI.
-                columnIndex = cursor.getColumnIndex(PhoneLookup.PHOTO_URI);
-                if ((columnIndex != -1) && (cursor.getString(columnIndex) != null)) {
-                    info.contactDisplayPhotoUri = Uri.parse(cursor.getString(columnIndex));
-                } else {
-                    info.contactDisplayPhotoUri = null;
-                }
+                final String photoUri = columns.photoUri != -1
+                        ? cursor.getString(columns.photoUri) : null;
+                info.contactDisplayPhotoUri = photoUri != null ? Uri.parse(photoUri) : null;
+                final String thumbnailUri = columns.thumbnailUri != -1
+                        ? cursor.getString(columns.thumbnailUri) : null;
+                info.contactThumbnailUri = thumbnailUri != null ? Uri.parse(thumbnailUri) : null;
 
                 // look for the custom ringtone, create from the string stored
                 // in the database.
-                columnIndex = cursor.getColumnIndex(PhoneLookup.CUSTOM_RINGTONE);
-                if ((columnIndex != -1) && (cursor.getString(columnIndex) != null)) {
-                    info.contactRingtoneUri = Uri.parse(cursor.getString(columnIndex));
-                } else {
-                    info.contactRingtoneUri = null;
-                }
+                final String ringtoneUri = columns.customRingtone != -1
+                        ? cursor.getString(columns.customRingtone) : null;
+                info.contactRingtoneUri = ringtoneUri != null ? Uri.parse(ringtoneUri) : null;
 
                 // look for the send to voicemail flag, set it to true only
                 // under certain circumstances.
-                columnIndex = cursor.getColumnIndex(PhoneLookup.SEND_TO_VOICEMAIL);
-                info.shouldSendToVoicemail = (columnIndex != -1) &&
-                        ((cursor.getInt(columnIndex)) == 1);
+                info.shouldSendToVoicemail = (columns.sendToVoicemail != -1) &&
+                        ((cursor.getInt(columns.sendToVoicemail)) == 1);
                 info.contactExists = true;
             }
             cursor.close();
@@ -281,8 +399,8 @@ public class CallerInfo {
      */
     private static CallerInfo getCallerInfo(Context context, Uri contactRef) {
 
-        return getCallerInfo(context, contactRef,
-                context.getContentResolver().query(contactRef, null, null, null, null));
+        return getCallerInfo(context, contactRef, context.getContentResolver().query(
+                contactRef, PHONE_LOOKUP_PROJECTION, null, null, null));
     }
 
     /**
@@ -440,7 +558,7 @@ public class CallerInfo {
             Log.v(TAG, "'data' URI; using Data.CONTACT_ID");
             // (Note Data.CONTACT_ID and RawContacts.CONTACT_ID are equivalent.)
             columnName = Data.CONTACT_ID;
-        } else if (url.startsWith("content://com.android.contacts/phone_lookup")) {
+        } else if (isPhoneLookupUri(contactRef)) {
             // Lookup in the PhoneLookup table, which provides "fuzzy matching"
             // for phone numbers.
             // MIME type: PhoneLookup.CONTENT_TYPE (= "vnd.android.cursor.dir/phone_lookup")
@@ -455,6 +573,10 @@ public class CallerInfo {
         return columnIndex;
     }
 
+    private static boolean isPhoneLookupUri(Uri contactRef) {
+        return contactRef.toString().startsWith("content://com.android.contacts/phone_lookup");
+    }
+
     /**
      * Updates this CallerInfo's geoDescription field, based on the raw
      * phone number in the phoneNumber field.
@@ -472,6 +594,46 @@ public class CallerInfo {
         geoDescription = getGeoDescription(context, number);
     }
 
+    /**
+     * Warms up the phone number metadata and geocoding data for the current country and locale
+     * in the background, so that the first caller lookup does not have to load them. Only the
+     * first call has any effect.
+     */
+    public static void warmUpGeocoder(Context context) {
+        synchronized (sGeoDescriptions) {
+            if (sGeocoderWarmUpStarted) {
+                return;
+            }
+            sGeocoderWarmUpStarted = true;
+        }
+        final Context applicationContext = context.getApplicationContext();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Locale locale =
+                        applicationContext.getResources().getConfiguration().locale;
+                final String countryIso =
+                        TelephonyManagerUtils.getCurrentCountryIso(applicationContext, locale);
+                final long startNanos = SystemClock.elapsedRealtimeNanos();
+                final PhoneNumberUtil util = PhoneNumberUtil.getInstance();
+                final PhoneNumber example = util.getExampleNumber(countryIso);
+                if (example != null) {
+                    PhoneNumberOfflineGeocoder.getInstance().getDescriptionForNumber(example,
+                            locale);
+                    // The framework normalizes numbers with its own copy of the metadata.
+                    PhoneNumberUtils.formatNumberToE164(
+                            util.format(example, PhoneNumberUtil.PhoneNumberFormat.E164),
+                            countryIso);
+                }
+                synchronized (sGeoDescriptions) {
+                    sGeocoderWarm = true;
+                }
+                ContactLookupMetrics.GEOCODER_WARM_UP.recordSince(startNanos);
+                Log.d(TAG, "Geocoder warmed up for " + countryIso);
+            }
+        });
+    }
+
     /**
      * @return a geographical description string for the specified number.
      * @see com.android.i18n.phonenumbers.PhoneNumberOfflineGeocoder
@@ -483,11 +645,37 @@ public class CallerInfo {
             return null;
         }
 
+        Locale locale = context.getResources().getConfiguration().locale;
+        String countryIso = TelephonyManagerUtils.getCurrentCountryIso(context, locale);
+        final String cacheKey = countryIso + '|' + locale + '|' + number;
+        final String cached = sGeoDescriptions.get(cacheKey);
+        if (cached != null) {
+            Log.v(TAG, "- cached description: '" + cached + "'");
+            return cached.isEmpty() ? null : cached;
+        }
+
+        final boolean isCold;
+        synchronized (sGeoDescriptions) {
+            isCold = !sGeocoderWarm;
+            sGeocoderWarm = true;
+        }
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final String description = computeGeoDescription(number, countryIso, locale);
+        if (isCold) {
+            ContactLookupMetrics.GEOCODE_COLD.recordSince(startNanos);
+        } else {
+            ContactLookupMetrics.GEOCODE_WARM.recordSince(startNanos);
+        }
+
+        sGeoDescriptions.put(cacheKey, description == null ? "" : description);
+        return description;
+    }
+
+    private static String computeGeoDescription(String number, String countryIso,
+            Locale locale) {
         PhoneNumberUtil util = PhoneNumberUtil.getInstance();
         PhoneNumberOfflineGeocoder geocoder = PhoneNumberOfflineGeocoder.getInstance();
 
-        Locale locale = context.getResources().getConfiguration().locale;
-        String countryIso = TelephonyManagerUtils.getCurrentCountryIso(context, locale);
         PhoneNumber pn = null;
         try {
             Log.v(TAG, "parsing '" + number
@@ -538,6 +726,7 @@ public class CallerInfo {
                     .append("\ncontactRefUri: " + contactRefUri)
                     .append("\ncontactRingtoneUri: " + contactRingtoneUri)
                     .append("\ncontactDisplayPhotoUri: " + contactDisplayPhotoUri)
+                    .append("\ncontactThumbnailUri: " + contactThumbnailUri)
                     .append("\nshouldSendToVoicemail: " + shouldSendToVoicemail)
                     .append("\ncachedPhoto: " + cachedPhoto)
                     .append("\nisCachedPhotoCurrent: " + isCachedPhotoCurrent)
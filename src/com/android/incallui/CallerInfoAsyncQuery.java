@@ -22,8 +22,11 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
@@ -32,7 +35,10 @@ import android.text.TextUtils;
 import com.android.contacts.common.util.PhoneNumberHelper;
 import com.android.contacts.common.util.TelephonyManagerUtils;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -52,12 +58,29 @@ public class CallerInfoAsyncQuery {
 
     private CallerInfoAsyncQueryHandler mHandler;
 
+    /**
+     * Worker thread shared by all batch queries, started on first use.
+     */
+    private static Handler sBatchWorker;
+
+    /**
+     * Provider queries which are still running, keyed by their lookup URI. A request for a URI
+     * in this map is attached to the running query as an additional listener instead of
+     * querying the provider again. Guarded by itself.
+     */
+    private static final HashMap<Uri, CallerInfoAsyncQuery> sInFlightQueries = new HashMap<>();
+
+    /** Number of provider queries avoided by attaching to a running query. */
+    private static int sCoalescedQueryCount;
+
     // If the CallerInfo query finds no contacts, should we use the
     // PhoneNumberOfflineGeocoder to look up a "geo description"?
     // (TODO: This could become a flag in config.xml if it ever needs to be
     // configured on a per-product basis.)
     private static final boolean ENABLE_UNKNOWN_NUMBER_GEO_DESCRIPTION = true;
 
+    private static final String TRACE_SECTION_QUERY = "CallerInfoAsyncQuery";
+
     /**
      * Interface for a CallerInfoAsyncQueryHandler result return.
      */
@@ -78,6 +101,8 @@ public class CallerInfoAsyncQuery {
         public Object cookie;
         public int event;
         public String number;
+        /** {@link SystemClock#elapsedRealtimeNanos} when the query was requested. */
+        public long startNanos;
     }
 
 
@@ -165,7 +190,12 @@ public class CallerInfoAsyncQuery {
                     switch (cw.event) {
                         case EVENT_NEW_QUERY:
                             //start the sql command.
-                            super.handleMessage(msg);
+                            Trace.beginSection(TRACE_SECTION_QUERY);
+                            try {
+                                super.handleMessage(msg);
+                            } finally {
+                                Trace.endSection();
+                            }
                             break;
 
                         // shortcuts to avoid query for recognized numbers.
@@ -253,50 +283,16 @@ public class CallerInfoAsyncQuery {
                     } else if (cw.event == EVENT_VOICEMAIL_NUMBER) {
                         mCallerInfo = new CallerInfo().markAsVoiceMail(mQueryContext);
                     } else {
-                        mCallerInfo = CallerInfo.getCallerInfo(mQueryContext, mQueryUri, cursor);
-                        Log.d(this, "==> Got mCallerInfo: " + mCallerInfo);
-
-                        CallerInfo newCallerInfo = CallerInfo.doSecondaryLookupIfNecessary(
-                                mQueryContext, cw.number, mCallerInfo);
-                        if (newCallerInfo != mCallerInfo) {
-                            mCallerInfo = newCallerInfo;
-                            Log.d(this, "#####async contact look up with numeric username"
-                                    + mCallerInfo);
-                        }
-
-                        // Final step: look up the geocoded description.
-                        if (ENABLE_UNKNOWN_NUMBER_GEO_DESCRIPTION) {
-                            // Note we do this only if we *don't* have a valid name (i.e. if
-                            // no contacts matched the phone number of the incoming call),
-                            // since that's the only case where the incoming-call UI cares
-                            // about this field.
-                            //
-                            // (TODO: But if we ever want the UI to show the geoDescription
-                            // even when we *do* match a contact, we'll need to either call
-                            // updateGeoDescription() unconditionally here, or possibly add a
-                            // new parameter to CallerInfoAsyncQuery.startQuery() to force
-                            // the geoDescription field to be populated.)
-
-                            if (TextUtils.isEmpty(mCallerInfo.name)) {
-                                // Actually when no contacts match the incoming phone number,
-                                // the CallerInfo object is totally blank here (i.e. no name
-                                // *or* phoneNumber).  So we need to pass in cw.number as
-                                // a fallback number.
-                                mCallerInfo.updateGeoDescription(mQueryContext, cw.number);
-                            }
-                        }
-
-                        // Use the number entered by the user for display.
-                        if (!TextUtils.isEmpty(cw.number)) {
-                            mCallerInfo.phoneNumber = PhoneNumberHelper.formatNumber(cw.number,
-                                    mCallerInfo.normalizedNumber,
-                                    TelephonyManagerUtils.getCurrentCountryIso(mQueryContext,
-                                            Locale.getDefault()));
-                        }
+                        mCallerInfo = buildCallerInfo(mQueryContext, mQueryUri, cursor,
+                                cw.number);
+                        ContactLookupMetrics.PROVIDER_QUERY.recordSince(cw.startNanos);
                     }
 
                     Log.d(this, "constructing CallerInfo object for token: " + token);
 
+                    // Listeners can no longer be attached once the end marker is queued.
+                    unregisterInFlight(CallerInfoAsyncQuery.this, mQueryUri);
+
                     //notify that we can clean up the queue after this.
                     CookieWrapper endMarker = new CookieWrapper();
                     endMarker.event = EVENT_END_OF_QUEUE;
@@ -318,6 +314,134 @@ public class CallerInfoAsyncQuery {
         }
     }
 
+    /**
+     * Builds the CallerInfo for a completed provider query, including the secondary lookup for
+     * numeric SIP usernames and the geo description of unknown numbers.
+     *
+     * @param number The number that was looked up, used for display.
+     */
+    private static CallerInfo buildCallerInfo(Context context, Uri queryUri, Cursor cursor,
+            String number) {
+        CallerInfo callerInfo = CallerInfo.getCallerInfo(context, queryUri, cursor);
+        Log.d(LOG_TAG, "==> Got mCallerInfo: " + callerInfo);
+
+        CallerInfo newCallerInfo = CallerInfo.doSecondaryLookupIfNecessary(
+                context, number, callerInfo);
+        if (newCallerInfo != callerInfo) {
+            callerInfo = newCallerInfo;
+            Log.d(LOG_TAG, "#####async contact look up with numeric username" + callerInfo);
+        }
+
+        // Final step: look up the geocoded description.
+        if (ENABLE_UNKNOWN_NUMBER_GEO_DESCRIPTION) {
+            // Note we do this only if we *don't* have a valid name (i.e. if
+            // no contacts matched the phone number of the incoming call),
+            // since that's the only case where the incoming-call UI cares
+            // about this field.
+            //
+            // (TODO: But if we ever want the UI to show the geoDescription
+            // even when we *do* match a contact, we'll need to either call
+            // updateGeoDescription() unconditionally here, or possibly add a
+            // new parameter to CallerInfoAsyncQuery.startQuery() to force
+            // the geoDescription field to be populated.)
+
+            if (TextUtils.isEmpty(callerInfo.name)) {
+                // Actually when no contacts match the incoming phone number,
+                // the CallerInfo object is totally blank here (i.e. no name
+                // *or* phoneNumber).  So we need to pass in the number as
+                // a fallback number.
+                callerInfo.updateGeoDescription(context, number);
+            }
+        }
+
+        // Use the number entered by the user for display.
+        if (!TextUtils.isEmpty(number)) {
+            callerInfo.phoneNumber = PhoneNumberHelper.formatNumber(number,
+                    callerInfo.normalizedNumber,
+                    TelephonyManagerUtils.getCurrentCountryIso(context, Locale.getDefault()));
+        }
+        return callerInfo;
+    }
+
+    /**
+     * A set of lookups resolved together on the batch worker thread. Results are delivered to
+     * the listeners in a single message on the looper which started the batch.
+     */
+    private static final class BatchQuery implements Runnable {
+        private final Context mContext;
+        private final int mToken;
+        private final Handler mReplyHandler;
+        private final ArrayList<CookieWrapper> mCookies;
+        private final ArrayList<Uri> mQueryUris;
+        private final CallerInfo[] mResults;
+
+        private BatchQuery(Context context, int token, Handler replyHandler,
+                ArrayList<CookieWrapper> cookies, ArrayList<Uri> queryUris) {
+            mContext = context;
+            mToken = token;
+            mReplyHandler = replyHandler;
+            mCookies = cookies;
+            mQueryUris = queryUris;
+            mResults = new CallerInfo[cookies.size()];
+        }
+
+        @Override
+        public void run() {
+            // Participants sharing a number are only looked up once, but each gets its own copy
+            // of the result since listeners fill it in further.
+            final HashMap<String, CallerInfo> resultsByNumber = new HashMap<>();
+            for (int i = 0; i < mCookies.size(); i++) {
+                final CookieWrapper cw = mCookies.get(i);
+                final CallerInfo callerInfo = resultsByNumber.get(cw.number);
+                if (callerInfo != null) {
+                    mResults[i] = callerInfo.copy();
+                } else {
+                    mResults[i] = resolve(cw, mQueryUris.get(i));
+                    resultsByNumber.put(cw.number, mResults[i]);
+                }
+            }
+
+            mReplyHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < mCookies.size(); i++) {
+                        final CookieWrapper cw = mCookies.get(i);
+                        if (cw.listener != null) {
+                            cw.listener.onQueryComplete(mToken, cw.cookie, mResults[i]);
+                        }
+                    }
+                }
+            });
+        }
+
+        private CallerInfo resolve(CookieWrapper cw, Uri queryUri) {
+            if (cw.event == EVENT_EMERGENCY_NUMBER) {
+                return new CallerInfo().markAsEmergency(mContext);
+            } else if (cw.event == EVENT_VOICEMAIL_NUMBER) {
+                return new CallerInfo().markAsVoiceMail(mContext);
+            }
+
+            Cursor cursor = null;
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
+            Trace.beginSection(TRACE_SECTION_QUERY);
+            try {
+                cursor = mContext.getContentResolver().query(queryUri,
+                        CallerInfo.PHONE_LOOKUP_PROJECTION, null, null, null);
+                return buildCallerInfo(mContext, queryUri, cursor, cw.number);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Batch caller info lookup failed", e);
+                return buildCallerInfo(mContext, queryUri, null, cw.number);
+            } finally {
+                Trace.endSection();
+                ContactLookupMetrics.PROVIDER_QUERY.recordSince(startNanos);
+                // The cursor may have been closed in CallerInfo.getCallerInfo()
+                if (cursor != null && !cursor.isClosed()) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
     /**
      * Private constructor for factory methods.
      */
@@ -343,24 +467,130 @@ public class CallerInfoAsyncQuery {
 
         // Construct the URI object and query params, and start the query.
 
-        final Uri contactRef = PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI.buildUpon()
-                .appendPath(info.phoneNumber)
-                .appendQueryParameter(PhoneLookup.QUERY_PARAMETER_SIP_ADDRESS,
-                        String.valueOf(PhoneNumberHelper.isUriNumber(info.phoneNumber)))
-                .build();
+        final Uri contactRef = buildContactRef(info.phoneNumber);
 
         if (DBG) {
             Log.d(LOG_TAG, "==> contactRef: " + sanitizeUriToString(contactRef));
         }
 
+        //create cookieWrapper, start query
+        CookieWrapper cw = buildCookie(context, info, listener, cookie);
+
+        if (cw.event == EVENT_NEW_QUERY) {
+            synchronized (sInFlightQueries) {
+                final CallerInfoAsyncQuery inFlight = sInFlightQueries.get(contactRef);
+                if (inFlight != null) {
+                    sCoalescedQueryCount++;
+                    Log.d(LOG_TAG, "Attaching to running query; " + sCoalescedQueryCount
+                            + " queries saved so far");
+                    inFlight.addQueryListener(token, cw);
+                    return inFlight;
+                }
+            }
+        }
+
         CallerInfoAsyncQuery c = new CallerInfoAsyncQuery();
         c.allocate(context, contactRef);
+        if (cw.event == EVENT_NEW_QUERY) {
+            synchronized (sInFlightQueries) {
+                sInFlightQueries.put(contactRef, c);
+            }
+        }
 
-        //create cookieWrapper, start query
+        c.mHandler.startQuery(token,
+                              cw,  // cookie
+                              contactRef,  // uri
+                              CallerInfo.PHONE_LOOKUP_PROJECTION,  // projection
+                              null,  // selection
+                              null,  // selectionArgs
+                              null);  // orderBy
+        return c;
+    }
+
+    /**
+     * Adds a listener to a query which has not completed yet. The listener is queued behind the
+     * running query on the worker, so it is informed with the same CallerInfo once the query
+     * completes.
+     */
+    private void addQueryListener(int token, CookieWrapper cw) {
+        cw.event = EVENT_ADD_LISTENER;
+        mHandler.startQuery(token, cw, null, null, null, null, null);
+    }
+
+    private static void unregisterInFlight(CallerInfoAsyncQuery query, Uri contactRef) {
+        synchronized (sInFlightQueries) {
+            if (sInFlightQueries.get(contactRef) == query) {
+                sInFlightQueries.remove(contactRef);
+            }
+        }
+    }
+
+    /**
+     * @return The number of provider queries which were avoided by attaching the request to an
+     *      identical query that was still running.
+     */
+    public static int getCoalescedQueryCount() {
+        synchronized (sInFlightQueries) {
+            return sCoalescedQueryCount;
+        }
+    }
+
+    /**
+     * Factory method to look up several numbers at once, e.g. the participants of a conference
+     * call.
+     *
+     * PhoneLookup only accepts a single number per query, so rather than queueing one
+     * CallerInfoAsyncQuery per number, all numbers are resolved back to back in one request to a
+     * worker thread. Numbers which appear more than once are only looked up once. The listener
+     * is called for every entry, in order, from a single message on the calling thread's looper.
+     *
+     * @param infos The numbers to look up.
+     * @param cookies The cookie to pass to the listener for each entry of {@code infos}.
+     */
+    public static void startBatchQuery(int token, Context context, List<CallerInfo> infos,
+            OnQueryCompleteListener listener, List<?> cookies) {
+        Log.d(LOG_TAG, "##### CallerInfoAsyncQuery startBatchQuery()... #####");
+        Log.d(LOG_TAG, "- numbers: " + infos.size());
+        if (context == null || infos.size() != cookies.size()) {
+            throw new QueryPoolException("Bad context or mismatched cookies.");
+        }
+
+        final ArrayList<CookieWrapper> cookieWrappers = new ArrayList<>(infos.size());
+        final ArrayList<Uri> queryUris = new ArrayList<>(infos.size());
+        for (int i = 0; i < infos.size(); i++) {
+            final CallerInfo info = infos.get(i);
+            cookieWrappers.add(buildCookie(context, info, listener, cookies.get(i)));
+            queryUris.add(buildContactRef(info.phoneNumber));
+        }
+
+        getBatchWorker().post(new BatchQuery(context, token, new Handler(), cookieWrappers,
+                queryUris));
+    }
+
+    private static synchronized Handler getBatchWorker() {
+        if (sBatchWorker == null) {
+            final HandlerThread thread = new HandlerThread("CallerInfoBatchWorker");
+            thread.start();
+            sBatchWorker = new Handler(thread.getLooper());
+        }
+        return sBatchWorker;
+    }
+
+    private static Uri buildContactRef(String number) {
+        return PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI.buildUpon()
+                .appendPath(number)
+                .appendQueryParameter(PhoneLookup.QUERY_PARAMETER_SIP_ADDRESS,
+                        String.valueOf(PhoneNumberHelper.isUriNumber(number)))
+                .build();
+    }
+
+    private static CookieWrapper buildCookie(Context context, CallerInfo info,
+            OnQueryCompleteListener listener, Object cookie) {
         CookieWrapper cw = new CookieWrapper();
         cw.listener = listener;
         cw.cookie = cookie;
         cw.number = info.phoneNumber;
+        cw.startNanos = SystemClock.elapsedRealtimeNanos();
 
         // check to see if these are recognized numbers, and use shortcuts if we can.
         if (PhoneNumberUtils.isLocalEmergencyNumber(context, info.phoneNumber)) {
@@ -370,15 +600,7 @@ public class CallerInfoAsyncQuery {
         } else {
             cw.event = EVENT_NEW_QUERY;
         }
-
-        c.mHandler.startQuery(token,
-                              cw,  // cookie
-                              contactRef,  // uri
-                              null,  // projection
-                              null,  // selection
-                              null,  // selectionArgs
-                              null);  // orderBy
-        return c;
+        return cw;
     }
 
     /**
@@ -12,7 +12,9 @@ import android.util.Log;
 import com.android.contacts.common.model.Contact;
 import com.android.contacts.common.model.ContactLoader;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Utility methods for contact and caller info related functionality
@@ -37,8 +39,15 @@ public class CallerInfoUtils {
      */
     public static CallerInfo getCallerInfoForCall(Context context, Call call,
             CallerInfoAsyncQuery.OnQueryCompleteListener listener) {
-        CallerInfo info = buildCallerInfo(context, call);
+        return startQuery(context, call, buildCallerInfo(context, call), listener);
+    }
 
+    /**
+     * Like {@link #getCallerInfoForCall}, but for a CallerInfo which was already built by
+     * {@link #buildCallerInfo}, e.g. on a background thread.
+     */
+    public static CallerInfo startQuery(Context context, Call call, CallerInfo info,
+            CallerInfoAsyncQuery.OnQueryCompleteListener listener) {
         // TODO: Have phoneapp send a Uri when it knows the contact that triggered this call.
 
         if (info.numberPresentation == TelecomManager.PRESENTATION_ALLOWED) {
@@ -49,6 +58,35 @@ public class CallerInfoUtils {
         return info;
     }
 
+    /**
+     * Batched form of {@link #getCallerInfoForCall}. Returns the immediate CallerInfo for each
+     * call, in order, and looks up all calls whose number may be shown with a single
+     * {@link CallerInfoAsyncQuery#startBatchQuery}. The listener receives each call as cookie.
+     */
+    public static List<CallerInfo> getCallerInfoForCalls(Context context, List<Call> calls,
+            CallerInfoAsyncQuery.OnQueryCompleteListener listener) {
+        final List<CallerInfo> infos = new ArrayList<>(calls.size());
+        final List<CallerInfo> queryInfos = new ArrayList<>(calls.size());
+        final List<Call> queryCalls = new ArrayList<>(calls.size());
+        for (int i = 0; i < calls.size(); i++) {
+            final Call call = calls.get(i);
+            final CallerInfo info = buildCallerInfo(context, call);
+            infos.add(info);
+            if (info.numberPresentation == TelecomManager.PRESENTATION_ALLOWED) {
+                queryInfos.add(info);
+                queryCalls.add(call);
+            }
+        }
+
+        if (!queryInfos.isEmpty()) {
+            Log.d(TAG, "==> Actually starting CallerInfoAsyncQuery.startBatchQuery() for "
+                    + queryInfos.size() + " calls");
+            CallerInfoAsyncQuery.startBatchQuery(QUERY_TOKEN, context, queryInfos, listener,
+                    queryCalls);
+        }
+        return infos;
+    }
+
     public static CallerInfo buildCallerInfo(Context context, Call call) {
         CallerInfo info = new CallerInfo();
 
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.DisplayNameSources;
+
+import com.android.dialer.calllog.ContactInfo;
+import com.android.dialer.service.CachedNumberLookupService;
+import com.android.dialer.service.CachedNumberLookupService.CachedContactInfo;
+import com.google.common.collect.Sets;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Write-behind queue which adds the CNAP names of callers to the
+ * {@link CachedNumberLookupService}. Names are queued on the main thread and written in batches
+ * on a background priority thread, and never while a call is ringing, so that caching does not
+ * compete with the caller ID lookup and photo load. A number is only written once per batch.
+ *
+ * Apart from the worker thread, this class must only be used from the main thread.
+ */
+/* package */ class CnapCacheWriter {
+
+    private static final String TAG = CnapCacheWriter.class.getSimpleName();
+
+    /** How long to collect names before writing them. */
+    private static final long BATCH_DELAY_MS = 5000;
+
+    private static final int MSG_FLUSH = 1;
+
+    private static final class PendingName {
+        final String number;
+        final String name;
+
+        PendingName(String number, String name) {
+            this.number = number;
+            this.name = name;
+        }
+    }
+
+    private final Context mContext;
+    private final CachedNumberLookupService mLookupService;
+    private final CallList mCallList;
+
+    /** Numbers queued for the next batch. */
+    private final HashSet<String> mQueuedNumbers = Sets.newHashSet();
+    private ArrayList<PendingName> mPending = new ArrayList<>();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_FLUSH) {
+                flush();
+            }
+        }
+    };
+    private Handler mWorker;
+
+    /** Only used on the worker thread. */
+    private final StringBuilder mLookupKeyBuilder = new StringBuilder();
+
+    /* package */ CnapCacheWriter(Context context, CachedNumberLookupService lookupService) {
+        this(context, lookupService, CallList.getInstance());
+    }
+
+    /* package */ CnapCacheWriter(Context context, CachedNumberLookupService lookupService,
+            CallList callList) {
+        mContext = context.getApplicationContext();
+        mLookupService = lookupService;
+        mCallList = callList;
+    }
+
+    /**
+     * Queues the CNAP name of a number to be cached, unless the number is already queued.
+     */
+    public void enqueue(String number, String cnapName) {
+        if (number == null || !mQueuedNumbers.add(number)) {
+            return;
+        }
+        Log.i(TAG, "Found contact with CNAP name - queueing it for the cache");
+        mPending.add(new PendingName(number, cnapName));
+        if (!mMainHandler.hasMessages(MSG_FLUSH)) {
+            mMainHandler.sendEmptyMessageDelayed(MSG_FLUSH, BATCH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Hands the queued names to the worker thread to be written, or defers them while a call is
+     * ringing. Called once the batch delay passes.
+     */
+    /* package */ void flush() {
+        if (mPending.isEmpty()) {
+            return;
+        }
+        if (mCallList.getIncomingCall() != null) {
+            // Leave the disk and the provider to the caller ID lookup while a call is ringing.
+            mMainHandler.sendEmptyMessageDelayed(MSG_FLUSH, BATCH_DELAY_MS);
+            return;
+        }
+
+        final ArrayList<PendingName> batch = mPending;
+        mPending = new ArrayList<>();
+        mQueuedNumbers.clear();
+        getWorker().post(new Runnable() {
+            @Override
+            public void run() {
+                write(batch);
+            }
+        });
+    }
+
+    private void write(ArrayList<PendingName> batch) {
+        Log.d(TAG, "Caching " + batch.size() + " CNAP names");
+        for (int i = 0; i < batch.size(); i++) {
+            final PendingName pending = batch.get(i);
+            final ContactInfo contactInfo = new ContactInfo();
+            final CachedContactInfo cacheInfo =
+                    mLookupService.buildCachedContactInfo(contactInfo);
+            cacheInfo.setSource(CachedContactInfo.SOURCE_TYPE_CNAP, "CNAP", 0);
+            contactInfo.name = pending.name;
+            contactInfo.number = pending.number;
+            contactInfo.type = Phone.TYPE_MAIN;
+            cacheInfo.setLookupKey(buildLookupKey(mLookupKeyBuilder, pending.name,
+                    pending.number));
+            mLookupService.addContact(mContext, cacheInfo);
+        }
+    }
+
+    private synchronized Handler getWorker() {
+        if (mWorker == null) {
+            final HandlerThread thread = new HandlerThread("CnapCacheWriter",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mWorker = new Handler(thread.getLooper());
+        }
+        return mWorker;
+    }
+
+    /**
+     * Serializes a CNAP contact into the JSON lookup key understood by the cached number lookup
+     * service, reusing the builder rather than building a tree of JSONObjects.
+     */
+    private static String buildLookupKey(StringBuilder sb, String name, String number) {
+        sb.setLength(0);
+        sb.append('{');
+        appendString(sb, Contacts.DISPLAY_NAME).append(':');
+        appendString(sb, name).append(',');
+        appendString(sb, Contacts.DISPLAY_NAME_SOURCE).append(':')
+                .append(DisplayNameSources.STRUCTURED_NAME).append(',');
+        appendString(sb, Contacts.CONTENT_ITEM_TYPE).append(":{");
+        appendString(sb, Phone.CONTENT_ITEM_TYPE).append(":{");
+        appendString(sb, Phone.NUMBER).append(':');
+        appendString(sb, number).append(',');
+        appendString(sb, Phone.TYPE).append(':').append(Phone.TYPE_MAIN);
+        return sb.append("}}}").toString();
+    }
+
+    private static StringBuilder appendString(StringBuilder sb, String value) {
+        if (value == null) {
+            return sb.append("null");
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append('\\').append(c);
+                    break;
+                case '\b':
+                    sb.append("\\b");
+                    break;
+                case '\f':
+                    sb.append("\\f");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"');
+    }
+}
@@ -37,6 +37,11 @@ public class ConferenceManagerPresenter
 
     private Context mContext;
 
+    /** Conference call, membership version and participants last passed to the ui. */
+    private String mShownConferenceCallId;
+    private int mShownChildCallIdsVersion;
+    private final ArrayList<Call> mShownCalls = new ArrayList<>();
+
     @Override
     public void onUiReady(ConferenceManagerUi ui) {
         super.onUiReady(ui);
@@ -52,6 +57,7 @@ public class ConferenceManagerPresenter
 
         InCallPresenter.getInstance().removeListener(this);
         InCallPresenter.getInstance().removeIncomingCallListener(this);
+        mShownConferenceCallId = null;
     }
 
     @Override
@@ -105,6 +111,7 @@ public class ConferenceManagerPresenter
     public void init(Context context, CallList callList) {
         mContext = Preconditions.checkNotNull(context);
         mContext = context;
+        mShownConferenceCallId = null;
         update(callList);
     }
 
@@ -120,20 +127,31 @@ public class ConferenceManagerPresenter
             return;
         }
 
-        ArrayList<Call> calls = new ArrayList<>(currentCall.getChildCallIds().size());
-        for (String callerId : currentCall.getChildCallIds()) {
-            calls.add(callList.getCallById(callerId));
-        }
-
-        Log.d(this, "Number of calls is " + String.valueOf(calls.size()));
-
         // Users can split out a call from the conference call if either the active call or the
         // holding call is empty. If both are filled, users can not split out another call.
         final boolean hasActiveCall = (callList.getActiveCall() != null);
         final boolean hasHoldingCall = (callList.getBackgroundCall() != null);
         boolean canSeparate = !(hasActiveCall && hasHoldingCall);
 
-        getUi().update(mContext, calls, canSeparate);
+        // Only collect the participants again if they changed; the adapter still rebinds the
+        // rows of participants whose details or state changed.
+        final int childCallIdsVersion = currentCall.getChildCallIdsVersion();
+        if (!currentCall.getId().equals(mShownConferenceCallId)
+                || childCallIdsVersion != mShownChildCallIdsVersion) {
+            mShownConferenceCallId = currentCall.getId();
+            mShownChildCallIdsVersion = childCallIdsVersion;
+
+            final List<String> childCallIds = currentCall.getChildCallIds();
+            mShownCalls.clear();
+            mShownCalls.ensureCapacity(childCallIds.size());
+            for (int i = 0; i < childCallIds.size(); i++) {
+                mShownCalls.add(callList.getCallById(childCallIds.get(i)));
+            }
+        }
+
+        Log.d(this, "Number of calls is " + String.valueOf(mShownCalls.size()));
+
+        getUi().update(mContext, mShownCalls, canSeparate);
     }
 
     public interface ConferenceManagerUi extends Ui {
@@ -35,14 +35,14 @@ import com.android.contacts.common.ContactPhotoManager.DefaultImageRequest;
 import com.android.incallui.ContactInfoCache.ContactCacheEntry;
 
 import java.lang.ref.WeakReference;
+import java.text.CollationKey;
+import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -56,12 +56,17 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
      */
     private class ParticipantInfo {
         private Call mCall;
+        /** {@link Call#getUpdateCount()} of the call when it was last bound. */
+        private int mCallUpdateCount;
         private ContactCacheEntry mContactCacheEntry;
         private boolean mCacheLookupComplete = false;
+        private boolean mCacheLookupRequested = false;
+        private String mSortName;
+        private CollationKey mSortKey;
 
         public ParticipantInfo(Call call, ContactCacheEntry contactCacheEntry) {
-            mCall = call;
-            mContactCacheEntry = contactCacheEntry;
+            setCall(call);
+            setContactCacheEntry(contactCacheEntry);
         }
 
         public Call getCall() {
@@ -70,14 +75,38 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
 
         public void setCall(Call call) {
             mCall = call;
+            mCallUpdateCount = call.getUpdateCount();
+        }
+
+        /**
+         * @return {@code true} if the call is not the one last set or changed since it was set.
+         */
+        public boolean isCallChanged(Call call) {
+            return mCall != call || mCallUpdateCount != call.getUpdateCount();
         }
 
         public ContactCacheEntry getContactCacheEntry() {
             return mContactCacheEntry;
         }
 
-        public void setContactCacheEntry(ContactCacheEntry entry) {
+        /**
+         * @return {@code true} if the name the participant is sorted by changed.
+         */
+        public boolean setContactCacheEntry(ContactCacheEntry entry) {
             mContactCacheEntry = entry;
+
+            // Contact names might be null, so replace with empty string.
+            final String sortName = entry.name == null ? "" : entry.name;
+            if (mSortKey != null && sortName.equals(mSortName)) {
+                return false;
+            }
+            mSortName = sortName;
+            mSortKey = mCollator.getCollationKey(sortName);
+            return true;
+        }
+
+        public CollationKey getSortKey() {
+            return mSortKey;
         }
 
         public boolean isCacheLookupComplete() {
@@ -88,6 +117,14 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
             mCacheLookupComplete = cacheLookupComplete;
         }
 
+        public boolean isCacheLookupRequested() {
+            return mCacheLookupRequested;
+        }
+
+        public void setCacheLookupRequested(boolean cacheLookupRequested) {
+            mCacheLookupRequested = cacheLookupRequested;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (o instanceof ParticipantInfo) {
@@ -104,6 +141,23 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
         }
     }
 
+    /**
+     * Orders participants by contact name, ignoring case, then by the order the calls were
+     * created so that participants with the same name keep a stable order.
+     */
+    private static final Comparator<ParticipantInfo> PARTICIPANT_ORDER =
+            new Comparator<ParticipantInfo>() {
+                @Override
+                public int compare(ParticipantInfo p1, ParticipantInfo p2) {
+                    final int result = p1.getSortKey().compareTo(p2.getSortKey());
+                    if (result != 0) {
+                        return result;
+                    }
+                    return Integer.compare(p1.getCall().getCreationSequence(),
+                            p2.getCall().getCreationSequence());
+                }
+            };
+
     /**
      * Callback class used when making requests to the {@link ContactInfoCache} to resolve contact
      * info and contact photos for conference participants.
@@ -181,15 +235,27 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
     private final ListView mListView;
 
     /**
-     * The conference participants to show in the ListView.
+     * The conference participants to show in the ListView, kept sorted by
+     * {@link #PARTICIPANT_ORDER}.
      */
-    private List<ParticipantInfo> mConferenceParticipants = new ArrayList<>();
+    private final ArrayList<ParticipantInfo> mConferenceParticipants = new ArrayList<>();
 
     /**
      * Hashmap to make accessing participant info by call Id faster.
      */
     private final HashMap<String, ParticipantInfo> mParticipantsByCallId = new HashMap<>();
 
+    /**
+     * Collator used to build the keys participants are sorted by.
+     */
+    private final Collator mCollator;
+
+    /**
+     * Scratch sets reused by {@link #updateParticipantInfo} to avoid allocating on each update.
+     */
+    private final HashSet<String> mCurrentCallIds = new HashSet<>();
+    private final HashSet<String> mChangedCallIds = new HashSet<>();
+
     /**
      * The context.
      */
@@ -225,6 +291,8 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
         mContext = context;
         mLayoutInflater = layoutInflater;
         mContactPhotoManager = contactPhotoManager;
+        mCollator = Collator.getInstance();
+        mCollator.setStrength(Collator.SECONDARY);
     }
 
     /**
@@ -235,8 +303,9 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
      *                                      conference.
      */
     public void updateParticipants(List<Call> conferenceParticipants, boolean parentCanSeparate) {
+        final boolean parentCanSeparateChanged = mParentCanSeparate != parentCanSeparate;
         mParentCanSeparate = parentCanSeparate;
-        updateParticipantInfo(conferenceParticipants);
+        updateParticipantInfo(conferenceParticipants, parentCanSeparateChanged);
     }
 
     /**
@@ -269,7 +338,12 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
      */
     @Override
     public long getItemId(int position) {
-        return position;
+        return mConferenceParticipants.get(position).getCall().getCreationSequence();
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
     }
 
     /**
@@ -307,6 +381,23 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
         }
     }
 
+    /**
+     * Rebinds the visible rows of the specified calls, leaving all other rows untouched.
+     *
+     * @param callIds The call ids.
+     */
+    private void refreshViews(HashSet<String> callIds) {
+        int first = mListView.getFirstVisiblePosition();
+        int last = mListView.getLastVisiblePosition();
+
+        for (int position = 0; position <= last - first; position++) {
+            View view = mListView.getChildAt(position);
+            if (callIds.contains(view.getTag())) {
+                getView(position + first, view, mListView);
+            }
+        }
+    }
+
     /**
      * Creates or populates an existing conference participant row.
      *
@@ -330,8 +421,9 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
         final ContactInfoCache cache = ContactInfoCache.getInstance(mContext);
 
         // If a cache lookup has not yet been performed to retrieve the contact information and
-        // photo, do it now.
-        if (!participantInfo.isCacheLookupComplete()) {
+        // photo, do it now. Participants looked up in a batch are already waiting for theirs.
+        if (!participantInfo.isCacheLookupComplete()
+                && !participantInfo.isCacheLookupRequested()) {
             cache.findInfo(participantInfo.getCall(),
                     participantInfo.getCall().getState() == Call.State.INCOMING,
                     new ContactLookupCallback(this));
@@ -362,9 +454,13 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
     /* package */ void updateContactInfo(String callId, ContactCacheEntry entry) {
         if (mParticipantsByCallId.containsKey(callId)) {
             ParticipantInfo participantInfo = mParticipantsByCallId.get(callId);
-            participantInfo.setContactCacheEntry(entry);
             participantInfo.setCacheLookupComplete(true);
-            refreshView(callId);
+            if (participantInfo.setContactCacheEntry(entry)
+                    && moveToSortedPosition(participantInfo)) {
+                notifyDataSetChanged();
+            } else {
+                refreshView(callId);
+            }
         }
     }
 
@@ -432,74 +528,125 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
      * Updates the participant info list which is bound to the ListView.  Stores the call and
      * contact info for all entries.  The list is sorted alphabetically by participant name.
      *
+     * Only participants which joined, left or moved cause the whole list to be re-laid out;
+     * participants whose details changed in place are rebound individually.
+     *
      * @param conferenceParticipants The calls which make up the conference participants.
+     * @param forceRebind {@code True} if all rows need to be rebound.
      */
-    private void updateParticipantInfo(List<Call> conferenceParticipants) {
+    private void updateParticipantInfo(List<Call> conferenceParticipants, boolean forceRebind) {
         final ContactInfoCache cache = ContactInfoCache.getInstance(mContext);
-        boolean newParticipantAdded = false;
-        HashSet<String> newCallIds = new HashSet<>(conferenceParticipants.size());
+        final ArrayList<Call> lookupCalls = new ArrayList<>();
+        boolean structureChanged = false;
+        mCurrentCallIds.clear();
+        mChangedCallIds.clear();
 
         // Update or add conference participant info.
-        for (Call call : conferenceParticipants) {
-            String callId = call.getId();
-            newCallIds.add(callId);
+        for (int i = 0; i < conferenceParticipants.size(); i++) {
+            final Call call = conferenceParticipants.get(i);
+            final String callId = call.getId();
+            mCurrentCallIds.add(callId);
             ContactCacheEntry contactCache = cache.getInfo(callId);
-            if (contactCache == null) {
-                contactCache = ContactInfoCache.buildCacheEntryFromCall(mContext, call,
-                        call.getState() == Call.State.INCOMING);
+
+            ParticipantInfo participantInfo = mParticipantsByCallId.get(callId);
+            if (participantInfo == null) {
+                final boolean lookUp = contactCache == null;
+                if (lookUp) {
+                    contactCache = ContactInfoCache.buildCacheEntryFromCall(mContext, call,
+                            call.getState() == Call.State.INCOMING);
+                    lookupCalls.add(call);
+                }
+                participantInfo = new ParticipantInfo(call, contactCache);
+                // The batched lookup below is this participant's lookup; getView must not
+                // start another one.
+                participantInfo.setCacheLookupRequested(lookUp);
+                insertSorted(participantInfo);
+                mParticipantsByCallId.put(callId, participantInfo);
+                structureChanged = true;
+                continue;
             }
 
-            if (mParticipantsByCallId.containsKey(callId)) {
-                ParticipantInfo participantInfo = mParticipantsByCallId.get(callId);
+            // Keep the entry built when the participant joined until the lookup completes, unless
+            // the call changed since, e.g. its handle or CNAP name.
+            final boolean callChanged = participantInfo.isCallChanged(call);
+            if (contactCache == null) {
+                contactCache = callChanged
+                        ? ContactInfoCache.buildCacheEntryFromCall(mContext, call,
+                                call.getState() == Call.State.INCOMING)
+                        : participantInfo.getContactCacheEntry();
+            }
+            if (callChanged || participantInfo.getContactCacheEntry() != contactCache) {
                 participantInfo.setCall(call);
-                participantInfo.setContactCacheEntry(contactCache);
-            } else {
-                newParticipantAdded = true;
-                ParticipantInfo participantInfo = new ParticipantInfo(call, contactCache);
-                mConferenceParticipants.add(participantInfo);
-                mParticipantsByCallId.put(call.getId(), participantInfo);
+                if (participantInfo.setContactCacheEntry(contactCache)) {
+                    structureChanged |= moveToSortedPosition(participantInfo);
+                }
+                mChangedCallIds.add(callId);
             }
         }
 
         // Remove any participants that no longer exist.
-        Iterator<Map.Entry<String, ParticipantInfo>> it =
-                mParticipantsByCallId.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<String, ParticipantInfo> entry = it.next();
-            String existingCallId = entry.getKey();
-            if (!newCallIds.contains(existingCallId)) {
-                ParticipantInfo existingInfo = entry.getValue();
-                mConferenceParticipants.remove(existingInfo);
-                it.remove();
-            }
+        if (mParticipantsByCallId.size() > mCurrentCallIds.size()) {
+            removeParticipantsNotIn(mCurrentCallIds);
+            structureChanged = true;
         }
 
-        if (newParticipantAdded) {
-            // Sort the list of participants by contact name.
-            sortParticipantList();
+        if (structureChanged || forceRebind) {
+            notifyDataSetChanged();
+        } else if (!mChangedCallIds.isEmpty()) {
+            refreshViews(mChangedCallIds);
+        }
+
+        // Look up all participants which joined at once rather than one by one as their rows
+        // are bound. Conference participants are never incoming calls.
+        if (!lookupCalls.isEmpty()) {
+            cache.findInfos(lookupCalls, false /* isIncoming */, new ContactLookupCallback(this));
         }
-        notifyDataSetChanged();
     }
 
     /**
-     * Sorts the participant list by contact name.
+     * Inserts a participant at its sorted position using a binary search.
      */
-    private void sortParticipantList() {
-        Collections.sort(mConferenceParticipants, new Comparator<ParticipantInfo>() {
-            public int compare(ParticipantInfo p1, ParticipantInfo p2) {
-                // Contact names might be null, so replace with empty string.
-                String p1Name = p1.getContactCacheEntry().name;
-                if (p1Name == null) {
-                    p1Name = "";
-                }
+    private void insertSorted(ParticipantInfo participantInfo) {
+        int position = Collections.binarySearch(mConferenceParticipants, participantInfo,
+                PARTICIPANT_ORDER);
+        if (position < 0) {
+            position = -position - 1;
+        }
+        mConferenceParticipants.add(position, participantInfo);
+    }
 
-                String p2Name = p2.getContactCacheEntry().name;
-                if (p2Name == null) {
-                    p2Name = "";
-                }
+    /**
+     * Moves a participant whose sort key changed to its new sorted position.
+     *
+     * @return {@code true} if the participant moved.
+     */
+    private boolean moveToSortedPosition(ParticipantInfo participantInfo) {
+        final int oldPosition = mConferenceParticipants.indexOf(participantInfo);
+        if (oldPosition < 0) {
+            return false;
+        }
+        mConferenceParticipants.remove(oldPosition);
+        insertSorted(participantInfo);
+        return mConferenceParticipants.get(oldPosition) != participantInfo;
+    }
 
-                return p1Name.compareToIgnoreCase(p2Name);
+    /**
+     * Removes, in a single pass, every participant whose call id is not in the given set.
+     */
+    private void removeParticipantsNotIn(HashSet<String> callIds) {
+        final int size = mConferenceParticipants.size();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            final ParticipantInfo participantInfo = mConferenceParticipants.get(i);
+            final String callId = participantInfo.getCall().getId();
+            if (callIds.contains(callId)) {
+                mConferenceParticipants.set(kept++, participantInfo);
+            } else {
+                mParticipantsByCallId.remove(callId);
             }
-        });
+        }
+        for (int i = size - 1; i >= kept; i--) {
+            mConferenceParticipants.remove(i);
+        }
     }
 }
@@ -22,52 +22,112 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
 import android.os.Looper;
-import android.provider.ContactsContract;
+import android.os.SystemClock;
 import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.DisplayNameSources;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.telecom.TelecomManager;
 import android.text.TextUtils;
 
 import com.android.contacts.common.util.PhoneNumberHelper;
-import com.android.dialer.calllog.ContactInfo;
 import com.android.dialer.service.CachedNumberLookupService;
-import com.android.dialer.service.CachedNumberLookupService.CachedContactInfo;
 import com.android.incallui.service.PhoneNumberService;
 import com.android.incalluibind.ObjectFactory;
 import com.android.services.telephony.common.MoreStrings;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class responsible for querying Contact Information for Call objects. Can perform asynchronous
  * requests to the Contact Provider for information as well as respond synchronously for any data
- * that it currently has cached from previous queries. This class always gets called from the UI
- * thread so it does not need thread protection.
+ * that it currently has cached from previous queries.
+ *
+ * Cached entries may be read from any thread without locking. All other state is owned by the
+ * main thread: requests made on other threads are forwarded to it, and their callbacks are
+ * delivered on the looper of the requesting thread.
  */
 public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadCompleteListener {
 
     private static final String TAG = ContactInfoCache.class.getSimpleName();
     private static final int TOKEN_UPDATE_PHOTO_FOR_CALL_STATE = 0;
+    private static final int TOKEN_UPDATE_THUMBNAIL_FOR_CALL_STATE = 1;
 
     private final Context mContext;
     private final PhoneNumberService mPhoneNumberService;
     private final CachedNumberLookupService mCachedNumberLookupService;
-    private final HashMap<String, ContactCacheEntry> mInfoMap = Maps.newHashMap();
+    /** Queues CNAP names for the cached number lookup service; null if there is none. */
+    private final CnapCacheWriter mCnapCacheWriter;
+    private final ConcurrentHashMap<String, ContactCacheEntry> mInfoMap =
+            new ConcurrentHashMap<>();
     private final HashMap<String, Set<ContactInfoCacheCallback>> mCallBacks = Maps.newHashMap();
+    /** Resolved entries keyed by number, which outlive the calls they were resolved for. */
+    private final ContactNumberCache mNumberCache;
+    /** Number cache keys of the calls whose lookup is running. */
+    private final HashMap<String, String> mNumberKeyByCallId = Maps.newHashMap();
+    /** Recently resolved entries persisted across process restarts. */
+    private final PersistentContactStore mPersistentStore;
+    /** Calls currently showing an entry read from the persistent store. */
+    private final Set<String> mPersistedCallIds = Sets.newHashSet();
+    /**
+     * Entries built from the local lookup of calls which show a persisted remote name, to show
+     * instead unless the remote lookup confirms the name.
+     */
+    private final HashMap<String, ContactCacheEntry> mUnconfirmedLocalEntries =
+            Maps.newHashMap();
+    /** Numbers which recently could not be resolved locally or remotely. */
+    private final ContactMissCache mMissCache;
+    /** Stage, deadline and latency tracking of the running lookups. */
+    private final ContactLookupStages mStages;
+    /** Listeners which end a running lookup early when its call is answered or ends. */
+    private final HashMap<String, LookupCancellationListener> mCancellationListeners =
+            Maps.newHashMap();
+    /** Start of the running photo loads, to report how long until a photo was shown. */
+    private final HashMap<String, Long> mPhotoLoadStartNanos = Maps.newHashMap();
+    /** Calls of the running photo loads which show their thumbnail. */
+    private final Set<String> mThumbnailCallIds = Sets.newHashSet();
+
+    /** Receives the results of speculative lookups, which only need to land in the cache. */
+    private static final ContactInfoCacheCallback PREFETCH_CALLBACK =
+            new ContactInfoCacheCallback() {
+                @Override
+                public void onContactInfoComplete(String callId, ContactCacheEntry entry) {}
+
+                @Override
+                public void onImageLoadComplete(String callId, ContactCacheEntry entry) {}
+            };
+
+    /** What a lookup reads before it starts; a speculative lookup reads it in the background. */
+    private static final class LookupInputs {
+        final String numberKey;
+        final CallerInfo callerInfo;
+        final ContactCacheEntry persisted;
+
+        LookupInputs(String numberKey, CallerInfo callerInfo, ContactCacheEntry persisted) {
+            this.numberKey = numberKey;
+            this.callerInfo = callerInfo;
+            this.persisted = persisted;
+        }
+    }
 
     private static ContactInfoCache sCache = null;
 
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Lookups which showed an entry of the persistent store while they ran. */
+    private int mPersistedHits;
+
     private Drawable mDefaultContactPhotoDrawable;
     private Drawable mConferencePhotoDrawable;
 
@@ -83,8 +143,23 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
         mPhoneNumberService = ObjectFactory.newPhoneNumberService(context);
         mCachedNumberLookupService =
                 com.android.dialerbind.ObjectFactory.newCachedNumberLookupService();
+        mCnapCacheWriter = mCachedNumberLookupService == null
+                ? null : new CnapCacheWriter(context, mCachedNumberLookupService);
+        mNumberCache = new ContactNumberCache(context);
+        mPersistentStore = new PersistentContactStore(context);
+        mMissCache = new ContactMissCache(context);
+        mStages = new ContactLookupStages(new ContactLookupStages.Listener() {
+            @Override
+            public void onStageDeadline(String callId, int stage) {
+                publishPartialResult(callId);
+            }
+        });
     }
 
+    /**
+     * @return The cached entry for the call, or {@code null}. May be called from any thread:
+     *      entries are not changed once published, an update publishes a new entry instead.
+     */
     public ContactCacheEntry getInfo(String callId) {
         return mInfoMap.get(callId);
     }
@@ -102,39 +177,39 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
 
     public void maybeInsertCnapInformationIntoCache(Context context, final Call call,
             final CallerInfo info) {
-        if (mCachedNumberLookupService == null || TextUtils.isEmpty(info.cnapName)
+        if (mCnapCacheWriter == null || TextUtils.isEmpty(info.cnapName)
                 || mInfoMap.get(call.getId()) != null) {
             return;
         }
-        final Context applicationContext = context.getApplicationContext();
-        Log.i(TAG, "Found contact with CNAP name - inserting into cache");
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                ContactInfo contactInfo = new ContactInfo();
-                CachedContactInfo cacheInfo = mCachedNumberLookupService.buildCachedContactInfo(
-                        contactInfo);
-                cacheInfo.setSource(CachedContactInfo.SOURCE_TYPE_CNAP, "CNAP", 0);
-                contactInfo.name = info.cnapName;
-                contactInfo.number = call.getNumber();
-                contactInfo.type = ContactsContract.CommonDataKinds.Phone.TYPE_MAIN;
-                try {
-                    final JSONObject contactRows = new JSONObject().put(Phone.CONTENT_ITEM_TYPE,
-                            new JSONObject()
-                                    .put(Phone.NUMBER, contactInfo.number)
-                                    .put(Phone.TYPE, Phone.TYPE_MAIN));
-                    final String jsonString = new JSONObject()
-                            .put(Contacts.DISPLAY_NAME, contactInfo.name)
-                            .put(Contacts.DISPLAY_NAME_SOURCE, DisplayNameSources.STRUCTURED_NAME)
-                            .put(Contacts.CONTENT_ITEM_TYPE, contactRows).toString();
-                    cacheInfo.setLookupKey(jsonString);
-                } catch (JSONException e) {
-                    Log.w(TAG, "Creation of lookup key failed when caching CNAP information");
+        final String number = call.getNumber();
+        if (isMainThread()) {
+            mCnapCacheWriter.enqueue(number, info.cnapName);
+        } else {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCnapCacheWriter.enqueue(number, info.cnapName);
                 }
-                mCachedNumberLookupService.addContact(applicationContext, cacheInfo);
-                return null;
-            }
-        }.execute();
+            });
+        }
+    }
+
+    /**
+     * Writes the hit and miss counts of the caches and the latency of each lookup stage.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("ContactInfoCache: entries=" + mInfoMap.size() + ", running lookups="
+                + mCallBacks.size() + ", persisted hits=" + mPersistedHits);
+        pw.println(mNumberCache);
+        pw.println(mMissCache);
+        pw.println("Coalesced provider queries: "
+                + CallerInfoAsyncQuery.getCoalescedQueryCount());
+        mStages.dump(pw);
+        ContactLookupMetrics.dump(pw);
+    }
+
+    private static boolean isMainThread() {
+        return Looper.getMainLooper().getThread() == Thread.currentThread();
     }
 
     private class FindInfoCallback implements CallerInfoAsyncQuery.OnQueryCompleteListener {
@@ -146,6 +221,11 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
 
         @Override
         public void onQueryComplete(int token, Object cookie, CallerInfo callerInfo) {
+            if (!mStages.isActive(((Call) cookie).getId())) {
+                Log.d(TAG, "Contact lookup. Dropping local result of an ended lookup.");
+                return;
+            }
+            maybeRecordLocalMiss((Call) cookie, callerInfo);
             findInfoQueryComplete((Call) cookie, callerInfo, mIsIncoming, true);
         }
     }
@@ -159,9 +239,148 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
      */
     public void findInfo(final Call call, final boolean isIncoming,
             ContactInfoCacheCallback callback) {
-        Preconditions.checkState(Looper.getMainLooper().getThread() == Thread.currentThread());
         Preconditions.checkNotNull(callback);
+        if (!isMainThread()) {
+            final ContactInfoCacheCallback looperCallback = new LooperCallback(callback);
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    findInfo(call, isIncoming, looperCallback);
+                }
+            });
+            return;
+        }
+
+        if (registerCallback(call, callback)) {
+            startLookup(call, isIncoming, null);
+        }
+    }
+
+    /**
+     * Speculatively starts the contact lookup for a call which is being added, before the call
+     * list tells any presenter about it, so that their {@link #findInfo} joins the running
+     * lookup rather than starting it. The number is normalized, the CallerInfo built and the
+     * persistent store read on a background thread; the lookup continues on the main thread.
+     */
+    public void prefetchInfo(final Call call, final boolean isIncoming) {
+        if (call.isConferenceCall() || !registerCallback(call, PREFETCH_CALLBACK)) {
+            return;
+        }
+        Log.d(TAG, "Contact lookup. Starting speculative lookup for " + call.getId());
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String numberKey = getNumberKey(call);
+                final LookupInputs inputs = new LookupInputs(numberKey,
+                        CallerInfoUtils.buildCallerInfo(mContext, call),
+                        mPersistentStore.get(numberKey));
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        final String callId = call.getId();
+                        if (!mCallBacks.containsKey(callId)) {
+                            return;
+                        }
+                        if (CallList.getInstance().getCallById(callId) == null) {
+                            Log.d(TAG, "Contact lookup. Call removed before speculative lookup.");
+                            clearCallbacks(callId);
+                            return;
+                        }
+                        startLookup(call, isIncoming, inputs);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Requests contact data for several calls at once, e.g. the participants of a conference
+     * call. Calls which need a provider lookup are resolved by a single batched query rather
+     * than one query each. Results are returned through the callback for each call, exactly as
+     * with {@link #findInfo}.
+     */
+    public void findInfos(final List<Call> calls, final boolean isIncoming,
+            ContactInfoCacheCallback callback) {
+        Preconditions.checkNotNull(callback);
+        if (!isMainThread()) {
+            final List<Call> callsCopy = new ArrayList<>(calls);
+            final ContactInfoCacheCallback looperCallback = new LooperCallback(callback);
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    findInfos(callsCopy, isIncoming, looperCallback);
+                }
+            });
+            return;
+        }
+
+        final List<Call> lookupCalls = new ArrayList<>(calls.size());
+        for (int i = 0; i < calls.size(); i++) {
+            final Call call = calls.get(i);
+            if (!registerCallback(call, callback)
+                    || completeFromNumberCache(call, getNumberKey(call), isIncoming)) {
+                continue;
+            }
+            startLookupStages(call, isIncoming);
+            if (!completeFromMissCache(call, null, isIncoming)) {
+                lookupCalls.add(call);
+            }
+        }
+        if (lookupCalls.isEmpty()) {
+            return;
+        }
+
+        Log.d(TAG, "Contact lookup. Batching " + lookupCalls.size() + " provider lookups.");
+        final List<CallerInfo> callerInfos = CallerInfoUtils.getCallerInfoForCalls(
+                mContext, lookupCalls, new FindInfoCallback(isIncoming));
+        for (int i = 0; i < lookupCalls.size(); i++) {
+            final Call call = lookupCalls.get(i);
+            preloadPersistedEntry(call, callerInfos.get(i),
+                    mPersistentStore.get(mNumberKeyByCallId.get(call.getId())), isIncoming);
+            findInfoQueryComplete(call, callerInfos.get(i), isIncoming, false);
+        }
+    }
+
+    /**
+     * Starts a new lookup for the call, which its callbacks were just registered for.
+     *
+     * @param prefetched What a speculative lookup read in the background, or {@code null} to
+     *      read it here.
+     */
+    private void startLookup(Call call, boolean isIncoming, LookupInputs prefetched) {
+        final String numberKey = prefetched != null ? prefetched.numberKey : getNumberKey(call);
+        if (completeFromNumberCache(call, numberKey, isIncoming)) {
+            return;
+        }
+        startLookupStages(call, isIncoming);
+        final CallerInfo prebuilt = prefetched != null ? prefetched.callerInfo : null;
+        if (completeFromMissCache(call, prebuilt, isIncoming)) {
+            return;
+        }
+
+        /**
+         * Performs a query for caller information.
+         * Save any immediate data we get from the query. An asynchronous query may also be made
+         * for any data that we do not already have. Some queries, such as those for voicemail and
+         * emergency call information, will not perform an additional asynchronous query.
+         */
+        final CallerInfo callerInfo = CallerInfoUtils.startQuery(mContext, call,
+                prebuilt != null ? prebuilt : CallerInfoUtils.buildCallerInfo(mContext, call),
+                new FindInfoCallback(isIncoming));
+
+        preloadPersistedEntry(call, callerInfo,
+                prefetched != null ? prefetched.persisted : mPersistentStore.get(numberKey),
+                isIncoming);
+        findInfoQueryComplete(call, callerInfo, isIncoming, false);
+    }
 
+    /**
+     * Returns any intermediate result for the call to the callback and registers the callback
+     * for the remaining results.
+     *
+     * @return {@code true} if no lookup is running for the call and a new one must be started.
+     */
+    private boolean registerCallback(Call call, ContactInfoCacheCallback callback) {
         final String callId = call.getId();
         final ContactCacheEntry cacheEntry = mInfoMap.get(callId);
         Set<ContactInfoCacheCallback> callBacks = mCallBacks.get(callId);
@@ -173,31 +392,206 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
             callback.onContactInfoComplete(callId, cacheEntry);
             // If no other callbacks are in flight, we're done.
             if (callBacks == null) {
-                return;
+                return false;
             }
         }
 
         // If the entry already exists, add callback
         if (callBacks != null) {
             callBacks.add(callback);
-            return;
+            return false;
         }
         Log.d(TAG, "Contact lookup. In memory cache miss; searching provider.");
         // New lookup
         callBacks = Sets.newHashSet();
         callBacks.add(callback);
         mCallBacks.put(callId, callBacks);
+        return true;
+    }
 
-        /**
-         * Performs a query for caller information.
-         * Save any immediate data we get from the query. An asynchronous query may also be made
-         * for any data that we do not already have. Some queries, such as those for voicemail and
-         * emergency call information, will not perform an additional asynchronous query.
-         */
-        final CallerInfo callerInfo = CallerInfoUtils.getCallerInfoForCall(
-                mContext, call, new FindInfoCallback(isIncoming));
+    /**
+     * Completes a new lookup immediately if the number of the call was resolved before. The
+     * number cache does not keep decoded photos, so the photo of the contact is loaded again,
+     * usually straight from {@link ContactPhotoCache}.
+     *
+     * @return {@code true} if the number cache had an entry for the call.
+     */
+    private boolean completeFromNumberCache(Call call, String numberKey, boolean isIncoming) {
+        final String callId = call.getId();
+        final ContactCacheEntry cacheEntry = mNumberCache.get(numberKey);
+        if (cacheEntry == null) {
+            mNumberKeyByCallId.put(callId, numberKey);
+            return false;
+        }
 
-        findInfoQueryComplete(call, callerInfo, isIncoming, false);
+        mInfoMap.put(callId, cacheEntry);
+        sendInfoNotifications(callId, cacheEntry);
+        if (cacheEntry.photo == null && cacheEntry.displayPhotoUri != null) {
+            Log.d(TAG, "Contact lookup. Number cache hit; loading photo only.");
+            startLookupStages(call, isIncoming);
+            mStages.advance(callId, ContactLookupStages.STAGE_PHOTO);
+            startPhotoLoad(call, cacheEntry, isIncoming);
+            return true;
+        }
+
+        Log.d(TAG, "Contact lookup. Number cache hit; skipping lookup.");
+        sendImageNotifications(callId, cacheEntry);
+        clearCallbacks(callId);
+        return true;
+    }
+
+    /**
+     * Starts tracking the stages of a new lookup, which ends early if the call is disconnected
+     * before the lookup completes. Its remote stage is dropped once an incoming call is answered
+     * or rejected.
+     */
+    private void startLookupStages(Call call, boolean isIncoming) {
+        final String callId = call.getId();
+        mStages.start(callId);
+        final LookupCancellationListener listener =
+                new LookupCancellationListener(callId, isIncoming);
+        mCancellationListeners.put(callId, listener);
+        CallList.getInstance().addCallUpdateListener(callId, listener);
+    }
+
+    /**
+     * Ends a running lookup without waiting for its remaining stages, publishing the best result
+     * found so far. Results of the abandoned stages are dropped when they arrive.
+     */
+    private void completeEarly(String callId) {
+        mStages.cancel(callId);
+        publishPartialResult(callId);
+        clearCallbacks(callId);
+    }
+
+    /**
+     * Gives the callbacks of a lookup the best result found so far. The lookup keeps running and
+     * its later results are delivered as they arrive.
+     */
+    private void publishPartialResult(String callId) {
+        final ContactCacheEntry entry = mInfoMap.get(callId);
+        if (entry != null) {
+            Log.d(TAG, "Contact lookup. Publishing partial result. " + mStages);
+            sendInfoNotifications(callId, entry);
+            sendImageNotifications(callId, entry);
+        }
+    }
+
+    /**
+     * Drops the remote stage of a lookup, whose result would come too late to be of use. The
+     * local lookup and the photo load of the lookup still complete.
+     */
+    private void cancelRemoteStage(String callId) {
+        if (mStages.cancelStage(callId, ContactLookupStages.STAGE_REMOTE)) {
+            // Nothing but the remote result was left to wait for.
+            completeEarly(callId);
+        }
+    }
+
+    /**
+     * Skips the local lookup of a number which recently was not found in the contacts, using
+     * what that lookup returned instead. The remote lookup still runs unless it missed too.
+     *
+     * @param callerInfo The CallerInfo already built for the call, or {@code null}.
+     * @return {@code true} if the miss cache had a local miss for the call.
+     */
+    private boolean completeFromMissCache(Call call, CallerInfo callerInfo, boolean isIncoming) {
+        final ContactMissCache.LocalMiss localMiss =
+                mMissCache.getLocalMiss(mNumberKeyByCallId.get(call.getId()));
+        if (localMiss == null) {
+            return false;
+        }
+
+        Log.d(TAG, "Contact lookup. Local miss cached; skipping local lookup. " + mMissCache);
+        if (callerInfo == null) {
+            callerInfo = CallerInfoUtils.buildCallerInfo(mContext, call);
+        }
+        callerInfo.phoneNumber = localMiss.formattedNumber;
+        callerInfo.geoDescription = localMiss.geoDescription;
+        findInfoQueryComplete(call, callerInfo, isIncoming, true);
+        return true;
+    }
+
+    /**
+     * Remembers whether the local lookup for the call found a contact.
+     */
+    private void maybeRecordLocalMiss(Call call, CallerInfo callerInfo) {
+        final String numberKey = mNumberKeyByCallId.get(call.getId());
+        if (callerInfo.contactExists) {
+            mMissCache.remove(numberKey);
+            return;
+        }
+        if (callerInfo.isEmergencyNumber() || callerInfo.isVoiceMailNumber()) {
+            return;
+        }
+        mMissCache.putLocalMiss(numberKey,
+                new ContactMissCache.LocalMiss(callerInfo.phoneNumber,
+                        callerInfo.geoDescription));
+    }
+
+    /**
+     * Shows the name, label and photo last resolved for the call's number, as read from the
+     * persistent store, until the lookup which was just started completes.
+     */
+    private void preloadPersistedEntry(Call call, CallerInfo callerInfo,
+            ContactCacheEntry persisted, boolean isIncoming) {
+        final String callId = call.getId();
+        if (persisted == null || TextUtils.isEmpty(persisted.name)) {
+            return;
+        }
+
+        Log.d(TAG, "Contact lookup. Showing persisted entry until lookup completes.");
+        final ContactCacheEntry cacheEntry = buildEntry(mContext, callId, callerInfo,
+                call.getNumberPresentation(), isIncoming);
+        cacheEntry.name = persisted.name;
+        cacheEntry.label = persisted.label;
+        cacheEntry.lookupKey = persisted.lookupKey;
+        if (persisted.displayPhotoUri != null) {
+            cacheEntry.displayPhotoUri = persisted.displayPhotoUri;
+        }
+        mInfoMap.put(callId, cacheEntry);
+        mPersistedCallIds.add(callId);
+        mPersistedHits++;
+    }
+
+    /**
+     * @return The key of the call's number in the number cache, or {@code null} if the number
+     *      is not shown and should not be cached.
+     */
+    private String getNumberKey(Call call) {
+        if (call.getNumberPresentation() != TelecomManager.PRESENTATION_ALLOWED) {
+            return null;
+        }
+        return ContactNumberCache.normalize(mContext, getLookupNumber(call));
+    }
+
+    /**
+     * @return The number of the call without any forwarding number, as
+     *      {@link CallerInfoUtils#buildCallerInfo} looks it up.
+     */
+    private static String getLookupNumber(Call call) {
+        final String number = call.getNumber();
+        if (number != null) {
+            final int separator = number.indexOf('&');
+            if (separator >= 0) {
+                return number.substring(0, separator);
+            }
+        }
+        return number;
+    }
+
+    /**
+     * Ends a lookup which resolved the contact, remembering the result by number so that later
+     * calls from the same number do not need to look it up again.
+     */
+    private void completeLookup(String callId) {
+        final ContactCacheEntry entry = mInfoMap.get(callId);
+        if (entry != null && !TextUtils.isEmpty(entry.name)) {
+            final String numberKey = mNumberKeyByCallId.get(callId);
+            mNumberCache.put(numberKey, entry);
+            mPersistentStore.put(numberKey, entry);
+        }
+        clearCallbacks(callId);
     }
 
     private void findInfoQueryComplete(Call call, CallerInfo callerInfo, boolean isIncoming,
@@ -210,10 +604,25 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
         }
 
         ContactCacheEntry cacheEntry = mInfoMap.get(callId);
+        // A persisted entry for a local contact which no longer matches the number is stale.
+        // A persisted remote name is kept only until the remote lookup fails to confirm it.
+        boolean isStalePersistedEntry = false;
+        if (didLocalLookup && mPersistedCallIds.remove(callId) && !callerInfo.contactExists
+                && cacheEntry != null) {
+            if (cacheEntry.lookupKey != null) {
+                Log.d(TAG, "Contact lookup. Persisted contact no longer found, dropping it.");
+                mPersistentStore.remove(mNumberKeyByCallId.get(callId));
+                isStalePersistedEntry = true;
+            } else {
+                mUnconfirmedLocalEntries.put(callId,
+                        buildEntry(mContext, callId, callerInfo, presentationMode, isIncoming));
+            }
+        }
+
         // Ensure we always have a cacheEntry. Replace the existing entry if
         // it has no name or if we found a local contact.
         if (cacheEntry == null || TextUtils.isEmpty(cacheEntry.name) ||
-                callerInfo.contactExists) {
+                callerInfo.contactExists || isStalePersistedEntry) {
             cacheEntry = buildEntry(mContext, callId, callerInfo, presentationMode, isIncoming);
             mInfoMap.put(callId, cacheEntry);
         }
@@ -225,28 +634,93 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
             // contact wasn't found in the local DB.  We don't check the if the cache entry already
             // has a name because we allow overriding cnap data with data from other services.
             if (!callerInfo.contactExists && mPhoneNumberService != null) {
+                if (mMissCache.isRemoteMiss(mNumberKeyByCallId.get(callId))) {
+                    Log.d(TAG, "Contact lookup done. Remote miss cached; skipping remote lookup. "
+                            + mMissCache);
+                    mPersistentStore.remove(mNumberKeyByCallId.get(callId));
+                    clearCallbacks(callId);
+                    return;
+                }
+                if (mStages.isStageCancelled(callId, ContactLookupStages.STAGE_REMOTE)) {
+                    Log.d(TAG, "Contact lookup done. Remote lookup no longer wanted.");
+                    clearCallbacks(callId);
+                    return;
+                }
                 Log.d(TAG, "Contact lookup. Local contacts miss, checking remote");
+                mStages.advance(callId, ContactLookupStages.STAGE_REMOTE);
                 final PhoneNumberServiceListener listener = new PhoneNumberServiceListener(callId);
                 mPhoneNumberService.getPhoneNumberInfo(cacheEntry.number, listener, listener,
                         isIncoming);
             } else if (cacheEntry.displayPhotoUri != null) {
                 Log.d(TAG, "Contact lookup. Local contact found, starting image load");
+                mStages.advance(callId, ContactLookupStages.STAGE_PHOTO);
                 // Load the image with a callback to update the image state.
                 // When the load is finished, onImageLoadComplete() will be called.
-                ContactsAsyncHelper.startObtainPhotoAsync(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE,
-                        mContext, cacheEntry.displayPhotoUri, ContactInfoCache.this, callId);
+                startPhotoLoad(call, cacheEntry, isIncoming);
             } else {
                 if (callerInfo.contactExists) {
                     Log.d(TAG, "Contact lookup done. Local contact found, no image.");
+                    completeLookup(callId);
                 } else {
                     Log.d(TAG, "Contact lookup done. Local contact not found and"
                             + " no remote lookup service available.");
+                    clearCallbacks(callId);
                 }
-                clearCallbacks(callId);
             }
         }
     }
 
+    /**
+     * Loads the photo of a call, at the priority and size of where it will be shown. Conference
+     * participants are only shown in the rows of the conference manager.
+     *
+     * The thumbnail of the contact is queued ahead of the display photo so that it can be shown
+     * while the much larger display photo is decoded.
+     */
+    private void startPhotoLoad(Call call, ContactCacheEntry entry, boolean isIncoming) {
+        final int target;
+        final int priority;
+        final Call firstCall = CallList.getInstance().getFirstCall();
+        if (call.getParentId() != null) {
+            target = ContactsAsyncHelper.TARGET_CONFERENCE_ROW;
+            priority = ContactsAsyncHelper.PRIORITY_CONFERENCE;
+        } else if (isIncoming || firstCall == null
+                || TextUtils.equals(firstCall.getId(), call.getId())) {
+            target = ContactsAsyncHelper.TARGET_CALL_CARD;
+            priority = ContactsAsyncHelper.PRIORITY_PRIMARY;
+        } else {
+            target = ContactsAsyncHelper.TARGET_CALL_CARD;
+            priority = ContactsAsyncHelper.PRIORITY_SECONDARY;
+        }
+        mPhotoLoadStartNanos.put(call.getId(), SystemClock.elapsedRealtimeNanos());
+        if (entry.thumbnailUri != null && !entry.thumbnailUri.equals(entry.displayPhotoUri)) {
+            ContactsAsyncHelper.startObtainPhotoAsync(TOKEN_UPDATE_THUMBNAIL_FOR_CALL_STATE,
+                    mContext, entry.thumbnailUri, this, call.getId(), target, priority,
+                    call.getId());
+        }
+        ContactsAsyncHelper.startObtainPhotoAsync(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE, mContext,
+                entry.displayPhotoUri, this, call.getId(), target, priority, call.getId());
+    }
+
+    /**
+     * Shows the thumbnail of a contact until its display photo is loaded.
+     */
+    private void onThumbnailLoadComplete(String callId, ContactCacheEntry current,
+            Drawable photo) {
+        final Long startNanos = mPhotoLoadStartNanos.get(callId);
+        if (photo == null || startNanos == null) {
+            return;
+        }
+        Log.d(this, "setting thumbnail for entry: ", current);
+        final ContactCacheEntry entry = current.copy();
+        entry.photo = photo;
+        entry.loadedPhotoUri = entry.thumbnailUri;
+        mInfoMap.put(callId, entry);
+        mThumbnailCallIds.add(callId);
+        ContactLookupMetrics.PHOTO_FIRST.recordSince(startNanos);
+        sendImageNotifications(callId, entry);
+    }
+
     class PhoneNumberServiceListener implements PhoneNumberService.NumberLookupListener,
                                      PhoneNumberService.ImageLookupListener {
         private final String mCallId;
@@ -258,10 +732,18 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
         @Override
         public void onPhoneNumberInfoComplete(
                 final PhoneNumberService.PhoneNumberInfo info) {
+            if (!mStages.isActive(mCallId)) {
+                Log.d(TAG, "Contact lookup. Dropping remote result of an ended lookup.");
+                return;
+            }
+
             // If we got a miss, this is the end of the lookup pipeline,
             // so clear the callbacks and return.
             if (info == null) {
                 Log.d(TAG, "Contact lookup done. Remote contact not found.");
+                final String numberKey = mNumberKeyByCallId.get(mCallId);
+                mMissCache.putRemoteMiss(numberKey);
+                mPersistentStore.remove(numberKey);
                 clearCallbacks(mCallId);
                 return;
             }
@@ -294,13 +776,16 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
             }
 
             // Add the contact info to the cache.
+            mUnconfirmedLocalEntries.remove(mCallId);
             mInfoMap.put(mCallId, entry);
             sendInfoNotifications(mCallId, entry);
 
             // If there is no image then we should not expect another callback.
             if (info.getImageUrl() == null) {
                 // We're done, so clear callbacks
-                clearCallbacks(mCallId);
+                completeLookup(mCallId);
+            } else {
+                mStages.advance(mCallId, ContactLookupStages.STAGE_PHOTO);
             }
         }
 
@@ -321,29 +806,53 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
         // is available on contacts database.
 
         final String callId = (String) cookie;
-        final ContactCacheEntry entry = mInfoMap.get(callId);
+        if (!mStages.isActive(callId)) {
+            Log.d(this, "Dropping image of an ended lookup.");
+            return;
+        }
+        final ContactCacheEntry current = mInfoMap.get(callId);
 
-        if (entry == null) {
+        if (current == null) {
             Log.e(this, "Image Load received for empty search entry.");
             clearCallbacks(callId);
             return;
         }
-        Log.d(this, "setting photo for entry: ", entry);
+        if (token == TOKEN_UPDATE_THUMBNAIL_FOR_CALL_STATE) {
+            onThumbnailLoadComplete(callId, current, photo);
+            return;
+        }
+        Log.d(this, "setting photo for entry: ", current);
+        final ContactCacheEntry entry = current.copy();
 
         // Conference call icons are being handled in CallCardPresenter.
+        final boolean showsThumbnail = mThumbnailCallIds.remove(callId);
         if (photo != null) {
             Log.v(this, "direct drawable: ", photo);
             entry.photo = photo;
+            entry.loadedPhotoUri = entry.displayPhotoUri;
         } else if (photoIcon != null) {
             Log.v(this, "photo icon: ", photoIcon);
             entry.photo = new BitmapDrawable(mContext.getResources(), photoIcon);
+            entry.loadedPhotoUri = entry.displayPhotoUri;
+        } else if (showsThumbnail) {
+            Log.v(this, "unknown photo, keeping thumbnail");
         } else {
             Log.v(this, "unknown photo");
             entry.photo = null;
+            entry.loadedPhotoUri = null;
+        }
+        mInfoMap.put(callId, entry);
+
+        final Long startNanos = mPhotoLoadStartNanos.remove(callId);
+        if (startNanos != null && (photo != null || photoIcon != null)) {
+            if (!showsThumbnail) {
+                ContactLookupMetrics.PHOTO_FIRST.recordSince(startNanos);
+            }
+            ContactLookupMetrics.PHOTO_FULL.recordSince(startNanos);
         }
 
         sendImageNotifications(callId, entry);
-        clearCallbacks(callId);
+        completeLookup(callId);
     }
 
     /**
@@ -351,7 +860,21 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
      */
     public void clearCache() {
         mInfoMap.clear();
+        // The in-call UI is gone, so none of the photos are displayed any more.
+        ContactPhotoCache.getInstance(mContext).releaseRemoved();
         mCallBacks.clear();
+        mNumberKeyByCallId.clear();
+        mPersistedCallIds.clear();
+        mUnconfirmedLocalEntries.clear();
+        mPhotoLoadStartNanos.clear();
+        mThumbnailCallIds.clear();
+        mStages.cancelAll();
+        for (Map.Entry<String, LookupCancellationListener> entry
+                : mCancellationListeners.entrySet()) {
+            CallList.getInstance().removeCallUpdateListener(entry.getKey(), entry.getValue());
+        }
+        mCancellationListeners.clear();
+        mNumberCache.stopObserving();
     }
 
     private ContactCacheEntry buildEntry(Context context, String callId,
@@ -375,6 +898,7 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
             photo = getDefaultContactPhotoDrawable();
         } else {
             cce.displayPhotoUri = info.contactDisplayPhotoUri;
+            cce.thumbnailUri = info.contactThumbnailUri;
         }
 
         if (info.lookupKeyOrNull == null || info.contactIdOrZero == 0) {
@@ -510,23 +1034,42 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
     private void sendInfoNotifications(String callId, ContactCacheEntry entry) {
         final Set<ContactInfoCacheCallback> callBacks = mCallBacks.get(callId);
         if (callBacks != null) {
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
             for (ContactInfoCacheCallback callBack : callBacks) {
                 callBack.onContactInfoComplete(callId, entry);
             }
+            ContactLookupMetrics.CALLBACK_DISPATCH.recordSince(startNanos);
         }
     }
 
     private void sendImageNotifications(String callId, ContactCacheEntry entry) {
         final Set<ContactInfoCacheCallback> callBacks = mCallBacks.get(callId);
         if (callBacks != null && entry.photo != null) {
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
             for (ContactInfoCacheCallback callBack : callBacks) {
                 callBack.onImageLoadComplete(callId, entry);
             }
+            ContactLookupMetrics.CALLBACK_DISPATCH.recordSince(startNanos);
         }
     }
 
     private void clearCallbacks(String callId) {
+        final ContactCacheEntry localEntry = mUnconfirmedLocalEntries.remove(callId);
+        if (localEntry != null) {
+            Log.d(TAG, "Contact lookup. Persisted remote name not confirmed, dropping it.");
+            mInfoMap.put(callId, localEntry);
+            sendInfoNotifications(callId, localEntry);
+        }
         mCallBacks.remove(callId);
+        mNumberKeyByCallId.remove(callId);
+        mPersistedCallIds.remove(callId);
+        mPhotoLoadStartNanos.remove(callId);
+        mThumbnailCallIds.remove(callId);
+        mStages.finish(callId);
+        final LookupCancellationListener listener = mCancellationListeners.remove(callId);
+        if (listener != null) {
+            CallList.getInstance().removeCallUpdateListener(callId, listener);
+        }
     }
 
     /**
@@ -566,6 +1109,86 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
         return mConferencePhotoDrawable;
     }
 
+    /**
+     * Ends the lookup of a call early once the call ends, and drops its remote stage once an
+     * incoming call is answered or rejected.
+     */
+    private class LookupCancellationListener implements CallList.CallUpdateListener {
+        private final String mCallId;
+        private final boolean mIsIncoming;
+
+        LookupCancellationListener(String callId, boolean isIncoming) {
+            mCallId = callId;
+            mIsIncoming = isIncoming;
+        }
+
+        @Override
+        public void onCallChanged(Call call) {
+            final int state = call.getState();
+            final boolean isRinging =
+                    state == Call.State.INCOMING || state == Call.State.CALL_WAITING;
+            if (state == Call.State.DISCONNECTING || state == Call.State.DISCONNECTED) {
+                Log.d(TAG, "Contact lookup. Call is now " + Call.State.toString(state)
+                        + ", ending lookup for " + mCallId);
+                completeEarly(mCallId);
+            } else if (mIsIncoming && !isRinging) {
+                cancelRemoteStage(mCallId);
+            }
+        }
+
+        @Override
+        public void onSessionModificationStateChange(int sessionModificationState) {}
+
+        @Override
+        public void onLastForwardedNumberChange() {}
+
+        @Override
+        public void onChildNumberChange() {}
+    }
+
+    /**
+     * Delivers results on the looper of the thread which requested them, or directly if that
+     * thread has no looper.
+     */
+    private static class LooperCallback implements ContactInfoCacheCallback {
+        private final ContactInfoCacheCallback mCallback;
+        private final Handler mHandler;
+
+        LooperCallback(ContactInfoCacheCallback callback) {
+            mCallback = callback;
+            final Looper looper = Looper.myLooper();
+            mHandler = looper == null ? null : new Handler(looper);
+        }
+
+        @Override
+        public void onContactInfoComplete(final String callId, final ContactCacheEntry entry) {
+            if (mHandler == null) {
+                mCallback.onContactInfoComplete(callId, entry);
+                return;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onContactInfoComplete(callId, entry);
+                }
+            });
+        }
+
+        @Override
+        public void onImageLoadComplete(final String callId, final ContactCacheEntry entry) {
+            if (mHandler == null) {
+                mCallback.onImageLoadComplete(callId, entry);
+                return;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onImageLoadComplete(callId, entry);
+                }
+            });
+        }
+    }
+
     /**
      * Callback interface for the contact query.
      */
@@ -585,9 +1208,33 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
         public Uri contactUri;
         /** Either a display photo or a thumbnail URI. */
         public Uri displayPhotoUri;
+        /** Thumbnail URI, shown while the display photo is loaded. */
+        public Uri thumbnailUri;
+        /** The URI {@link #photo} was loaded from, if any. */
+        public Uri loadedPhotoUri;
         public Uri lookupUri; // Sent to NotificationMananger
         public String lookupKey;
 
+        /**
+         * @return A shallow copy of this entry.
+         */
+        public ContactCacheEntry copy() {
+            final ContactCacheEntry copy = new ContactCacheEntry();
+            copy.name = name;
+            copy.number = number;
+            copy.location = location;
+            copy.label = label;
+            copy.photo = photo;
+            copy.isSipCall = isSipCall;
+            copy.contactUri = contactUri;
+            copy.displayPhotoUri = displayPhotoUri;
+            copy.thumbnailUri = thumbnailUri;
+            copy.loadedPhotoUri = loadedPhotoUri;
+            copy.lookupUri = lookupUri;
+            copy.lookupKey = lookupKey;
+            return copy;
+        }
+
         @Override
         public String toString() {
             return Objects.toStringHelper(this)
@@ -599,6 +1246,7 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
                     .add("isSipCall", isSipCall)
                     .add("contactUri", contactUri)
                     .add("displayPhotoUri", displayPhotoUri)
+                    .add("thumbnailUri", thumbnailUri)
                     .toString();
         }
     }
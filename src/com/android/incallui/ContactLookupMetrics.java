@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import java.io.PrintWriter;
+
+/**
+ * Latency histograms of the caller ID pipeline which are shared by the classes taking part in
+ * it.
+ */
+/* package */ final class ContactLookupMetrics {
+
+    /** Provider queries of {@link CallerInfoAsyncQuery}, from start to result. */
+    public static final LatencyHistogram PROVIDER_QUERY =
+            new LatencyHistogram("Provider query");
+
+    /** Time photo loads of {@link ContactsAsyncHelper} wait for a worker. */
+    public static final LatencyHistogram PHOTO_QUEUE_WAIT =
+            new LatencyHistogram("Photo queue wait");
+
+    /** Time spent opening and decoding a photo on the {@link ContactsAsyncHelper} worker. */
+    public static final LatencyHistogram PHOTO_DECODE = new LatencyHistogram("Photo decode");
+
+    /** Photo loads of {@link ContactsAsyncHelper}, from request to listener. */
+    public static final LatencyHistogram PHOTO_LOAD = new LatencyHistogram("Photo load");
+
+    /** Time from the start of a caller photo load until a thumbnail or photo is shown. */
+    public static final LatencyHistogram PHOTO_FIRST = new LatencyHistogram("First photo");
+
+    /** Time from the start of a caller photo load until the display photo is shown. */
+    public static final LatencyHistogram PHOTO_FULL = new LatencyHistogram("Full photo");
+
+    /** Time spent in the callbacks of {@link ContactInfoCache}. */
+    public static final LatencyHistogram CALLBACK_DISPATCH =
+            new LatencyHistogram("Callback dispatch");
+
+    /** Time from an incoming call being added until the name of the caller is shown. */
+    public static final LatencyHistogram NAME_SHOWN =
+            new LatencyHistogram("Incoming call to name shown");
+
+    /** Geocoding of {@link CallerInfo} which had to load the metadata first. */
+    public static final LatencyHistogram GEOCODE_COLD = new LatencyHistogram("Cold geocode");
+
+    /** Geocoding of {@link CallerInfo} with the metadata already loaded. */
+    public static final LatencyHistogram GEOCODE_WARM = new LatencyHistogram("Warm geocode");
+
+    /** Background loading of the geocoder metadata by {@link CallerInfo#warmUpGeocoder}. */
+    public static final LatencyHistogram GEOCODER_WARM_UP =
+            new LatencyHistogram("Geocoder warm-up");
+
+    private ContactLookupMetrics() {
+    }
+
+    public static void dump(PrintWriter pw) {
+        PROVIDER_QUERY.dump(pw);
+        PHOTO_QUEUE_WAIT.dump(pw);
+        PHOTO_DECODE.dump(pw);
+        PHOTO_LOAD.dump(pw);
+        PHOTO_FIRST.dump(pw);
+        PHOTO_FULL.dump(pw);
+        CALLBACK_DISPATCH.dump(pw);
+        NAME_SHOWN.dump(pw);
+        GEOCODE_COLD.dump(pw);
+        GEOCODE_WARM.dump(pw);
+        GEOCODER_WARM_UP.dump(pw);
+    }
+}
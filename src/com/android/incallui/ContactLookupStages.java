@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import com.google.common.collect.Maps;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+
+/**
+ * Tracks the stage each running contact lookup of {@link ContactInfoCache} is in: the local
+ * contacts query, the remote {@link com.android.incallui.service.PhoneNumberService} lookup and
+ * the photo load. Every stage has a time budget; when a stage overruns it the listener is told so
+ * that the best result so far can be shown while the lookup keeps running. A stage which is no
+ * longer wanted can be cancelled on its own. The time spent in each stage is recorded in a
+ * histogram.
+ *
+ * This class must only be used from the main thread.
+ */
+/* package */ class ContactLookupStages {
+
+    private static final String TAG = ContactLookupStages.class.getSimpleName();
+
+    public static final int STAGE_LOCAL = 0;
+    public static final int STAGE_REMOTE = 1;
+    public static final int STAGE_PHOTO = 2;
+    private static final int STAGE_COUNT = 3;
+
+    private static final String[] STAGE_NAMES = new String[] { "local", "remote", "photo" };
+
+    /** How long each stage may take before the lookup is completed without it. */
+    private static final long[] STAGE_BUDGETS_MS = new long[] { 2000, 3000, 2000 };
+
+    private static final int MSG_DEADLINE = 1;
+
+    public interface Listener {
+        /**
+         * Called when a lookup overran the budget of its current stage. The lookup is still
+         * tracked, and gets a new budget when it moves on to its next stage.
+         */
+        void onStageDeadline(String callId, int stage);
+    }
+
+    private static final class Lookup {
+        final String callId;
+        int stage;
+        long stageStartNanos;
+        /** Bit mask of the stages which are no longer wanted. */
+        int cancelledStages;
+
+        Lookup(String callId) {
+            this.callId = callId;
+        }
+    }
+
+    private final Listener mListener;
+    private final HashMap<String, Lookup> mLookups = Maps.newHashMap();
+
+    private final LatencyHistogram[] mStageLatencies = new LatencyHistogram[] {
+            new LatencyHistogram("Local stage"),
+            new LatencyHistogram("Remote stage"),
+            new LatencyHistogram("Photo stage") };
+    private final int[] mTimeoutCounts = new int[STAGE_COUNT];
+    private int mCancelCount;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_DEADLINE) {
+                onDeadline((Lookup) msg.obj);
+            }
+        }
+    };
+
+    /* package */ ContactLookupStages(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts tracking a lookup in its local stage.
+     */
+    public void start(String callId) {
+        Lookup lookup = mLookups.get(callId);
+        if (lookup == null) {
+            lookup = new Lookup(callId);
+            mLookups.put(callId, lookup);
+        } else {
+            mHandler.removeMessages(MSG_DEADLINE, lookup);
+            lookup.cancelledStages = 0;
+        }
+        enter(lookup, STAGE_LOCAL, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Moves a lookup on to a later stage, recording how long the previous one took.
+     */
+    public void advance(String callId, int stage) {
+        final Lookup lookup = mLookups.get(callId);
+        if (lookup == null) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtimeNanos();
+        recordCompleted(lookup, now);
+        mHandler.removeMessages(MSG_DEADLINE, lookup);
+        enter(lookup, stage, now);
+    }
+
+    /**
+     * Stops tracking a lookup whose current stage completed.
+     */
+    public void finish(String callId) {
+        final Lookup lookup = mLookups.remove(callId);
+        if (lookup != null) {
+            mHandler.removeMessages(MSG_DEADLINE, lookup);
+            recordCompleted(lookup, SystemClock.elapsedRealtimeNanos());
+        }
+    }
+
+    /**
+     * Stops tracking a lookup whose remaining stages are no longer wanted.
+     *
+     * @return {@code true} if the lookup was being tracked.
+     */
+    public boolean cancel(String callId) {
+        final Lookup lookup = mLookups.remove(callId);
+        if (lookup == null) {
+            return false;
+        }
+        mHandler.removeMessages(MSG_DEADLINE, lookup);
+        mCancelCount++;
+        Log.d(TAG, "Cancelled lookup for " + callId + " in " + STAGE_NAMES[lookup.stage]
+                + " stage");
+        return true;
+    }
+
+    /**
+     * Marks one stage of a lookup as no longer wanted, e.g. the remote lookup once the call was
+     * answered. The lookup stays tracked; the caller decides what to do if it is in that stage.
+     *
+     * @return {@code true} if the lookup is currently in the cancelled stage.
+     */
+    public boolean cancelStage(String callId, int stage) {
+        final Lookup lookup = mLookups.get(callId);
+        if (lookup == null || (lookup.cancelledStages & (1 << stage)) != 0) {
+            return false;
+        }
+        lookup.cancelledStages |= 1 << stage;
+        Log.d(TAG, "Cancelled " + STAGE_NAMES[stage] + " stage of lookup for " + callId);
+        return lookup.stage == stage;
+    }
+
+    /**
+     * @return {@code true} if the stage of the lookup for the call was cancelled.
+     */
+    public boolean isStageCancelled(String callId, int stage) {
+        final Lookup lookup = mLookups.get(callId);
+        return lookup != null && (lookup.cancelledStages & (1 << stage)) != 0;
+    }
+
+    public void cancelAll() {
+        mHandler.removeMessages(MSG_DEADLINE);
+        mLookups.clear();
+    }
+
+    /**
+     * @return {@code true} if the lookup for the call is running and its results are wanted.
+     */
+    public boolean isActive(String callId) {
+        return mLookups.containsKey(callId);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("ContactLookupStages{timeouts=[");
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            sb.append(STAGE_NAMES[stage]).append('=').append(mTimeoutCounts[stage]).append(' ');
+        }
+        return sb.append("], cancelled=").append(mCancelCount).append('}').toString();
+    }
+
+    public void dump(PrintWriter pw) {
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            mStageLatencies[stage].dump(pw);
+        }
+        pw.println(toString());
+    }
+
+    private void onDeadline(Lookup lookup) {
+        if (mLookups.get(lookup.callId) != lookup) {
+            return;
+        }
+        mTimeoutCounts[lookup.stage]++;
+        Log.d(TAG, "Lookup for " + lookup.callId + " overran the " + STAGE_NAMES[lookup.stage]
+                + " budget of " + STAGE_BUDGETS_MS[lookup.stage] + "ms");
+        mListener.onStageDeadline(lookup.callId, lookup.stage);
+    }
+
+    private void enter(Lookup lookup, int stage, long nowNanos) {
+        lookup.stage = stage;
+        lookup.stageStartNanos = nowNanos;
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_DEADLINE, lookup),
+                STAGE_BUDGETS_MS[stage]);
+    }
+
+    private void recordCompleted(Lookup lookup, long nowNanos) {
+        final long elapsedUs = (nowNanos - lookup.stageStartNanos) / 1000;
+        mStageLatencies[lookup.stage].record(elapsedUs);
+        Log.v(TAG, "Lookup for " + lookup.callId + " spent " + elapsedUs + "us in "
+                + STAGE_NAMES[lookup.stage] + " stage");
+    }
+}
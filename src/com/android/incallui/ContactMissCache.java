@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+
+import com.android.contacts.common.testing.NeededForTesting;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of numbers which could not be resolved, keyed like {@link ContactNumberCache}.
+ * A number that missed the local contacts lookup is not looked up locally again until the local
+ * miss expires or the contacts provider changes; a number that also missed the remote
+ * {@link com.android.incallui.service.PhoneNumberService} lookup is not sent to the service
+ * again until the remote miss expires. The two kinds of miss expire independently since remote
+ * lookups are the more expensive ones and their results change less often.
+ *
+ * This class must only be used from the main thread.
+ */
+/* package */ class ContactMissCache {
+
+    private static final String TAG = ContactMissCache.class.getSimpleName();
+
+    /** Maximum number of numbers remembered; the least recently used are dropped first. */
+    private static final int MAX_ENTRIES = 128;
+
+    /** How long a local contacts miss is trusted, unless the contacts change before. */
+    @NeededForTesting
+    static final long LOCAL_MISS_TTL_MS = 10 * 60 * 1000;
+
+    /** How long a remote lookup miss is trusted. */
+    @NeededForTesting
+    static final long REMOTE_MISS_TTL_MS = 60 * 60 * 1000;
+
+    /**
+     * What the local lookup returned for a missed number, so that skipping the lookup shows the
+     * same information as running it.
+     */
+    /* package */ static final class LocalMiss {
+        final String formattedNumber;
+        final String geoDescription;
+
+        LocalMiss(String formattedNumber, String geoDescription) {
+            this.formattedNumber = formattedNumber;
+            this.geoDescription = geoDescription;
+        }
+    }
+
+    private static final class Entry {
+        LocalMiss localMiss;
+        long localExpiryTime;
+        long remoteExpiryTime;
+    }
+
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<>(16, 0.75f, true /* accessOrder */);
+
+    private int mLocalHits;
+    private int mLocalMisses;
+    private int mRemoteHits;
+    private int mRemoteMisses;
+
+    private final ContentObserver mContactsObserver =
+            new ContentObserver(new Handler(Looper.getMainLooper())) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    clearLocalMisses();
+                }
+            };
+
+    /* package */ ContactMissCache(Context context) {
+        context.getContentResolver().registerContentObserver(ContactsContract.AUTHORITY_URI,
+                true /* notifyForDescendents */, mContactsObserver);
+    }
+
+    /**
+     * @return What the last local lookup of the number returned, or {@code null} if the number
+     *      must be looked up locally.
+     */
+    public LocalMiss getLocalMiss(String key) {
+        return getLocalMiss(key, SystemClock.elapsedRealtime());
+    }
+
+    @NeededForTesting
+    LocalMiss getLocalMiss(String key, long now) {
+        final Entry entry = key == null ? null : mEntries.get(key);
+        if (entry == null || entry.localMiss == null || entry.localExpiryTime <= now) {
+            mLocalMisses++;
+            return null;
+        }
+        mLocalHits++;
+        return entry.localMiss;
+    }
+
+    /**
+     * @return {@code true} if the number recently missed the remote lookup and should not be
+     *      sent to the lookup service again.
+     */
+    public boolean isRemoteMiss(String key) {
+        return isRemoteMiss(key, SystemClock.elapsedRealtime());
+    }
+
+    @NeededForTesting
+    boolean isRemoteMiss(String key, long now) {
+        final Entry entry = key == null ? null : mEntries.get(key);
+        if (entry == null || entry.remoteExpiryTime <= now) {
+            mRemoteMisses++;
+            return false;
+        }
+        mRemoteHits++;
+        return true;
+    }
+
+    public void putLocalMiss(String key, LocalMiss localMiss) {
+        putLocalMiss(key, localMiss, SystemClock.elapsedRealtime());
+    }
+
+    @NeededForTesting
+    void putLocalMiss(String key, LocalMiss localMiss, long now) {
+        final Entry entry = getOrCreateEntry(key);
+        if (entry != null) {
+            entry.localMiss = localMiss;
+            entry.localExpiryTime = now + LOCAL_MISS_TTL_MS;
+        }
+    }
+
+    public void putRemoteMiss(String key) {
+        putRemoteMiss(key, SystemClock.elapsedRealtime());
+    }
+
+    @NeededForTesting
+    void putRemoteMiss(String key, long now) {
+        final Entry entry = getOrCreateEntry(key);
+        if (entry != null) {
+            entry.remoteExpiryTime = now + REMOTE_MISS_TTL_MS;
+        }
+    }
+
+    /**
+     * Forgets the number, e.g. because it was resolved after all.
+     */
+    public void remove(String key) {
+        if (key != null) {
+            mEntries.remove(key);
+        }
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public int getLocalHitCount() {
+        return mLocalHits;
+    }
+
+    public int getLocalMissCount() {
+        return mLocalMisses;
+    }
+
+    public int getRemoteHitCount() {
+        return mRemoteHits;
+    }
+
+    public int getRemoteMissCount() {
+        return mRemoteMisses;
+    }
+
+    @Override
+    public String toString() {
+        return "ContactMissCache{size=" + mEntries.size()
+                + ", local=" + mLocalHits + "/" + (mLocalHits + mLocalMisses)
+                + ", remote=" + mRemoteHits + "/" + (mRemoteHits + mRemoteMisses) + "}";
+    }
+
+    private Entry getOrCreateEntry(String key) {
+        if (key == null) {
+            return null;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(key, entry);
+            if (mEntries.size() > MAX_ENTRIES) {
+                final Iterator<String> eldest = mEntries.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Local misses may have become contacts; remote misses are unaffected by local changes.
+     */
+    private void clearLocalMisses() {
+        final Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next().getValue();
+            entry.localMiss = null;
+            if (entry.remoteExpiryTime == 0) {
+                iterator.remove();
+            }
+        }
+        Log.d(TAG, "Contacts changed, cleared local misses; " + mEntries.size() + " remain");
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.ContactsContract.Contacts;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import com.android.contacts.common.util.TelephonyManagerUtils;
+import com.android.incallui.ContactInfoCache.ContactCacheEntry;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Cache of resolved {@link ContactCacheEntry}s keyed by normalized phone number. Unlike the
+ * per-call entries of {@link ContactInfoCache}, entries survive the end of a call so that a
+ * repeat caller can be shown by name on the first frame. Photos decoded from a Uri are not kept:
+ * their bitmaps belong to {@link ContactPhotoCache}, which may reuse them once they drop out of
+ * it, so only the Uri is cached and the photo is loaded again through that cache.
+ *
+ * Entries are evicted least recently used first once their estimated size exceeds the memory
+ * budget, which is derived from the memory class of the device, expire after
+ * {@link #ENTRY_TTL_MS}, and are all dropped once the contacts provider stops reporting changes
+ * for {@link #CONTACTS_CHANGE_DELAY_MS}. The provider is only watched while the in-call UI is
+ * set up; entries which were cached before it was torn down are dropped when it comes back.
+ * This class must only be used from the main thread, except for {@link #normalize} which may be
+ * called from any thread.
+ */
+/* package */ class ContactNumberCache {
+
+    private static final String TAG = ContactNumberCache.class.getSimpleName();
+
+    /**
+     * Fraction of the memory class the estimated size of all cached entries may use, including
+     * the photos which are not loaded from a Uri.
+     */
+    private static final int MEMORY_CLASS_FRACTION = 64;
+
+    /** How long an entry may be used after it was resolved. */
+    private static final long ENTRY_TTL_MS = 60 * 60 * 1000;
+
+    /** How long to wait for a burst of contacts changes, e.g. a sync, to end. */
+    private static final long CONTACTS_CHANGE_DELAY_MS = 1000;
+
+    /** Rough fixed overhead of an entry besides its strings and photo. */
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    /**
+     * Recently normalized numbers, keyed by country ISO and number. Parsing a number is costly,
+     * and the number of a call is normalized again by every lookup started for it.
+     */
+    private static final LruCache<String, String> sNormalizedNumbers = new LruCache<>(32);
+
+    private static final class Entry {
+        final ContactCacheEntry contact;
+        final long expiryTime;
+        final int sizeBytes;
+
+        Entry(ContactCacheEntry contact, long expiryTime, int sizeBytes) {
+            this.contact = contact;
+            this.expiryTime = expiryTime;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<>(16, 0.75f, true /* accessOrder */);
+    private final int mMaxBytes;
+    private int mSizeBytes;
+    private int mHits;
+    private int mMisses;
+    private boolean mObserving;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mInvalidateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "Contacts changed, invalidating " + mEntries.size() + " entries");
+            clear();
+        }
+    };
+
+    private final ContentObserver mContactsObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mHandler.removeCallbacks(mInvalidateRunnable);
+            mHandler.postDelayed(mInvalidateRunnable, CONTACTS_CHANGE_DELAY_MS);
+        }
+    };
+
+    /* package */ ContactNumberCache(Context context) {
+        mContext = context.getApplicationContext();
+        final ActivityManager am =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mMaxBytes = am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_FRACTION;
+        ensureObserving();
+    }
+
+    /**
+     * Stops watching the contacts provider once the in-call UI is torn down. Watching resumes
+     * with the next use of the cache.
+     */
+    public void stopObserving() {
+        if (mObserving) {
+            mContext.getContentResolver().unregisterContentObserver(mContactsObserver);
+            mHandler.removeCallbacks(mInvalidateRunnable);
+            mObserving = false;
+        }
+    }
+
+    /**
+     * Starts watching the contacts provider if it is not watched yet, dropping the entries
+     * which might have changed while it was not.
+     */
+    private void ensureObserving() {
+        if (mObserving) {
+            return;
+        }
+        clear();
+        mContext.getContentResolver().registerContentObserver(Contacts.CONTENT_URI,
+                true /* notifyForDescendents */, mContactsObserver);
+        mObserving = true;
+    }
+
+    /**
+     * Returns the key under which information for a number is cached: the number in E164 format
+     * if it can be parsed for the current country, or else its dialable characters.
+     *
+     * @return The key, or {@code null} if the number cannot be cached.
+     */
+    public static String normalize(Context context, String number) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        final String countryIso = TelephonyManagerUtils.getCurrentCountryIso(context,
+                Locale.getDefault());
+        final String memoKey = countryIso + '|' + number;
+        final String memo = sNormalizedNumbers.get(memoKey);
+        if (memo != null) {
+            return memo;
+        }
+
+        String normalized = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+        if (TextUtils.isEmpty(normalized)) {
+            normalized = PhoneNumberUtils.normalizeNumber(number);
+        }
+        if (TextUtils.isEmpty(normalized)) {
+            return null;
+        }
+        sNormalizedNumbers.put(memoKey, normalized);
+        return normalized;
+    }
+
+    /**
+     * @return A copy of the cached entry for the key, or {@code null} if there is none or it
+     *      expired.
+     */
+    public ContactCacheEntry get(String key) {
+        if (key == null) {
+            return null;
+        }
+        ensureObserving();
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        if (entry.expiryTime <= SystemClock.elapsedRealtime()) {
+            remove(key);
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        final ContactCacheEntry contact = entry.contact.copy();
+        // Drawables keep per-view state such as bounds, so hand out a new one for the same
+        // image rather than sharing it between calls.
+        if (contact.photo != null && contact.photo.getConstantState() != null) {
+            contact.photo = contact.photo.getConstantState().newDrawable();
+        }
+        return contact;
+    }
+
+    /**
+     * Caches a copy of the entry for the key, replacing any previous one. A photo loaded from
+     * {@link ContactCacheEntry#loadedPhotoUri} is left out of the copy.
+     */
+    public void put(String key, ContactCacheEntry contact) {
+        if (key == null || contact == null) {
+            return;
+        }
+        ensureObserving();
+        final ContactCacheEntry copy = contact.copy();
+        if (copy.loadedPhotoUri != null) {
+            copy.photo = null;
+            copy.loadedPhotoUri = null;
+        }
+        final int sizeBytes = estimateSize(copy);
+        if (sizeBytes > mMaxBytes) {
+            return;
+        }
+        remove(key);
+        mEntries.put(key, new Entry(copy, SystemClock.elapsedRealtime() + ENTRY_TTL_MS,
+                sizeBytes));
+        mSizeBytes += sizeBytes;
+        trimToBudget();
+    }
+
+    public void remove(String key) {
+        final Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mSizeBytes -= entry.sizeBytes;
+        }
+    }
+
+    public void clear() {
+        mEntries.clear();
+        mSizeBytes = 0;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ContactNumberCache{size=" + mEntries.size() + ", bytes=" + mSizeBytes
+                + "/" + mMaxBytes + ", hits=" + mHits + ", misses=" + mMisses + "}";
+    }
+
+    private void trimToBudget() {
+        final Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mSizeBytes > mMaxBytes && iterator.hasNext()) {
+            mSizeBytes -= iterator.next().getValue().sizeBytes;
+            iterator.remove();
+        }
+    }
+
+    private static int estimateSize(ContactCacheEntry contact) {
+        int size = ENTRY_OVERHEAD_BYTES;
+        size += sizeOf(contact.name) + sizeOf(contact.number) + sizeOf(contact.location)
+                + sizeOf(contact.label) + sizeOf(contact.lookupKey);
+        size += sizeOf(contact.photo);
+        return size;
+    }
+
+    private static int sizeOf(String value) {
+        return value == null ? 0 : value.length() * 2;
+    }
+
+    private static int sizeOf(Drawable photo) {
+        // Other drawables are shared resources such as the default avatar.
+        if (photo instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) photo).getBitmap();
+            return bitmap == null ? 0 : bitmap.getByteCount();
+        }
+        return 0;
+    }
+}
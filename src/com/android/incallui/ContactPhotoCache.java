@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.LruCache;
+
+import com.google.common.base.Objects;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Process wide memory cache of decoded caller photos, keyed by the photo Uri and the size the
+ * photo was decoded or scaled for, so that a photo shown by both the call card and the
+ * notification is only decoded once. The cache is bounded by the byte size of its bitmaps,
+ * derived from the memory class of the device, and gives memory back on
+ * {@link ComponentCallbacks2#onTrimMemory}.
+ *
+ * Bitmaps which drop out of the cache may still be shown by the in-call UI, so they are held
+ * until the UI is torn down and only then given to the {@link BitmapPool} for reuse.
+ *
+ * Thread safe.
+ */
+/* package */ final class ContactPhotoCache {
+
+    private static final String TAG = ContactPhotoCache.class.getSimpleName();
+
+    /** Fraction of the memory class the cache may use. */
+    private static final int MEMORY_CLASS_FRACTION = 8;
+
+    /** Fraction of the cache budget the bitmap pool may use. */
+    private static final int POOL_FRACTION = 4;
+
+    private static final class Key {
+        final Uri uri;
+        final int size;
+        final boolean circular;
+
+        Key(Uri uri, int size, boolean circular) {
+            this.uri = uri;
+            this.size = size;
+            this.circular = circular;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return size == other.size && circular == other.circular
+                    && Objects.equal(uri, other.uri);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(uri, size, circular);
+        }
+    }
+
+    private static ContactPhotoCache sInstance;
+
+    private final LruCache<Key, Bitmap> mBitmaps;
+    private final BitmapPool mPool;
+
+    /** Bitmaps which dropped out of the cache while they may still be displayed. */
+    private final ArrayList<Bitmap> mRemoved = new ArrayList<>();
+    private int mRemovedBytes;
+
+    public static synchronized ContactPhotoCache getInstance(Context context) {
+        if (sInstance == null) {
+            final ActivityManager am =
+                    (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            sInstance = new ContactPhotoCache(
+                    am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_FRACTION);
+        }
+        return sInstance;
+    }
+
+    private ContactPhotoCache(int maxBytes) {
+        Log.d(TAG, "Photo cache budget: " + maxBytes + " bytes");
+        mPool = new BitmapPool(maxBytes / POOL_FRACTION);
+        mBitmaps = new LruCache<Key, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Key key, Bitmap oldValue,
+                    Bitmap newValue) {
+                if (oldValue != newValue) {
+                    onRemoved(oldValue);
+                }
+            }
+        };
+    }
+
+    public BitmapPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * @return The photo at {@code uri} decoded for {@code size}, or null if it is not cached.
+     */
+    public Bitmap get(Uri uri, int size) {
+        return get(uri, size, false);
+    }
+
+    public Bitmap get(Uri uri, int size, boolean circular) {
+        if (uri == null) {
+            return null;
+        }
+        return mBitmaps.get(new Key(uri, size, circular));
+    }
+
+    public void put(Uri uri, int size, Bitmap bitmap) {
+        put(uri, size, false, bitmap);
+    }
+
+    public void put(Uri uri, int size, boolean circular, Bitmap bitmap) {
+        if (uri == null || bitmap == null) {
+            return;
+        }
+        mBitmaps.put(new Key(uri, size, circular), bitmap);
+    }
+
+    /**
+     * Gives the bitmaps which dropped out of the cache to the pool. Must only be called once
+     * nothing displays them any more.
+     */
+    public void releaseRemoved() {
+        synchronized (mRemoved) {
+            for (int i = 0; i < mRemoved.size(); i++) {
+                mPool.put(mRemoved.get(i));
+            }
+            mRemoved.clear();
+            mRemovedBytes = 0;
+        }
+    }
+
+    private void onRemoved(Bitmap bitmap) {
+        synchronized (mRemoved) {
+            // Beyond what the pool could take, leave the bitmaps to the garbage collector.
+            final int size = bitmap.getAllocationByteCount();
+            if (mRemovedBytes + size <= mPool.getMaxByteCount()) {
+                mRemoved.add(bitmap);
+                mRemovedBytes += size;
+            }
+        }
+    }
+
+    /**
+     * Drops all or part of the cache, depending on how badly the system needs the memory. Called
+     * from {@link ComponentCallbacks2#onTrimMemory}.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mBitmaps.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mBitmaps.trimToSize(mBitmaps.maxSize() / 2);
+        } else {
+            return;
+        }
+        // Memory is what the system wants back, so do not keep the bitmaps around for reuse.
+        synchronized (mRemoved) {
+            mRemoved.clear();
+            mRemovedBytes = 0;
+        }
+        mPool.clear();
+        Log.d(TAG, "Trimmed for level " + level + ": " + this);
+    }
+
+    @Override
+    public String toString() {
+        // LruCache.toString() reports the hit rate along with the counts.
+        return "ContactPhotoCache{bytes=" + mBitmaps.size() + "/" + mBitmaps.maxSize()
+                + ", entries=" + mBitmaps.snapshot().size()
+                + ", evictions=" + mBitmaps.evictionCount() + ", " + mBitmaps + "}";
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println(toString());
+        pw.println(mPool);
+    }
+}
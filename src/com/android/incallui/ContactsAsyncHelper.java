@@ -16,22 +16,30 @@
 
 package com.android.incallui;
 
-import android.app.Notification;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.provider.ContactsContract.Contacts;
+import android.util.DisplayMetrics;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Helper class for loading contacts photo asynchronously.
@@ -39,7 +47,7 @@ import java.io.InputStream;
 public class ContactsAsyncHelper {
 
     /**
-     * Interface for a WorkerHandler result return.
+     * Interface for a photo load result return.
      */
     public interface OnImageLoadCompleteListener {
         /**
@@ -48,7 +56,7 @@ public class ContactsAsyncHelper {
          * @param token Integer passed in {@link ContactsAsyncHelper#startObtainPhotoAsync(int,
          * Context, Uri, OnImageLoadCompleteListener, Object)}.
          * @param photo Drawable object obtained by the async load.
-         * @param photoIcon Bitmap object obtained by the async load.
+         * @param photoIcon Bitmap object obtained by the async load, which backs {@code photo}.
          * @param cookie Object passed in {@link ContactsAsyncHelper#startObtainPhotoAsync(int,
          * Context, Uri, OnImageLoadCompleteListener, Object)}. Can be null iff. the original
          * cookie is null.
@@ -57,17 +65,50 @@ public class ContactsAsyncHelper {
                 Object cookie);
     }
 
+    private static final String TAG = ContactsAsyncHelper.class.getSimpleName();
+
     // constants
     private static final int EVENT_LOAD_IMAGE = 1;
 
+    /** Number of threads loading photos at the same time. */
+    private static final int WORKER_COUNT = 2;
+
+    /** Photo of the primary call, which is loaded first. */
+    public static final int PRIORITY_PRIMARY = 0;
+    /** Photo of a call on hold or waiting. */
+    public static final int PRIORITY_SECONDARY = 1;
+    /** Photo of a conference participant. */
+    public static final int PRIORITY_CONFERENCE = 2;
+    /** Photo for the notification only. */
+    public static final int PRIORITY_NOTIFICATION = 3;
+
+    private static final String[] PRIORITY_NAMES = new String[] {
+            "primary", "secondary", "conference", "notification" };
+
+    /** Photo shown on the call card. */
+    public static final int TARGET_CALL_CARD = 0;
+    /** Large icon of the in-call notification. */
+    public static final int TARGET_NOTIFICATION = 1;
+    /** Photo of a row of the conference manager. */
+    public static final int TARGET_CONFERENCE_ROW = 2;
+
+    private static final String TRACE_SECTION_DECODE = "ContactsAsyncHelper.decode";
+
     private final Handler mResultHandler = new Handler() {
         /** Called when loading is done. */
         @Override
         public void handleMessage(Message msg) {
-            WorkerArgs args = (WorkerArgs) msg.obj;
+            final PhotoLoadTask task = (PhotoLoadTask) msg.obj;
+            final WorkerArgs args = task.args;
             switch (msg.arg1) {
                 case EVENT_LOAD_IMAGE:
-                    if (args.listener != null) {
+                    synchronized (sLoads) {
+                        sLoads.remove(task);
+                    }
+                    ContactLookupMetrics.PHOTO_LOAD.recordSince(args.startNanos);
+                    if (task.cancelled) {
+                        Log.d(this, "Dropping cancelled image: " + args.displayPhotoUri);
+                    } else if (args.listener != null) {
                         Log.d(this, "Notifying listener: " + args.listener.toString() +
                                 " image: " + args.displayPhotoUri + " completed");
                         args.listener.onImageLoadComplete(msg.what, args.photo, args.photoIcon,
@@ -79,11 +120,16 @@ public class ContactsAsyncHelper {
         }
     };
 
-    /** Handler run on a worker thread to load photo asynchronously. */
-    private static Handler sThreadHandler;
+    /** Runs the photo loads, in the order of {@link PhotoLoadTask#compareTo}. */
+    private static ThreadPoolExecutor sExecutor;
+
+    /** Loads which were queued and did not deliver their result yet. */
+    private static final ArrayList<PhotoLoadTask> sLoads = new ArrayList<>();
+    private static long sLoadSequence;
+    private static int sMaxQueueDepth;
+    private static int sCancelledCount;
 
     /** For forcing the system to call its constructor */
-    @SuppressWarnings("unused")
     private static ContactsAsyncHelper sInstance;
 
     static {
@@ -97,112 +143,186 @@ public class ContactsAsyncHelper {
         public Bitmap photoIcon;
         public Object cookie;
         public OnImageLoadCompleteListener listener;
+        /** Size in pixels the shorter edge of the photo should be decoded to. */
+        public int targetSize;
+        /** {@link SystemClock#elapsedRealtimeNanos} when the load was requested. */
+        public long startNanos;
     }
 
     /**
-     * Thread worker class that handles the task of opening the stream and loading
-     * the images.
+     * Task run on a worker thread which handles the task of opening the stream and loading
+     * the images. Tasks of a higher priority run first, and tasks of the same priority in the
+     * order they were queued.
      */
-    private class WorkerHandler extends Handler {
-        public WorkerHandler(Looper looper) {
-            super(looper);
+    private static final class PhotoLoadTask implements Runnable, Comparable<PhotoLoadTask> {
+        final int token;
+        final WorkerArgs args;
+        final int priority;
+        final String callId;
+        final long sequence;
+        volatile boolean cancelled;
+
+        PhotoLoadTask(int token, WorkerArgs args, int priority, String callId, long sequence) {
+            this.token = token;
+            this.args = args;
+            this.priority = priority;
+            this.callId = callId;
+            this.sequence = sequence;
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            WorkerArgs args = (WorkerArgs) msg.obj;
+        public int compareTo(PhotoLoadTask other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
 
-            switch (msg.arg1) {
-                case EVENT_LOAD_IMAGE:
-                    InputStream inputStream = null;
-                    try {
-                        try {
-                            inputStream = args.context.getContentResolver()
-                                    .openInputStream(args.displayPhotoUri);
-                        } catch (Exception e) {
-                            Log.e(this, "Error opening photo input stream", e);
-                        }
-
-                        if (inputStream != null) {
-                            args.photo = Drawable.createFromStream(inputStream,
-                                    args.displayPhotoUri.toString());
-
-                            // This assumes Drawable coming from contact database is usually
-                            // BitmapDrawable and thus we can have (down)scaled version of it.
-                            args.photoIcon = getPhotoIconWhenAppropriate(args.context, args.photo);
-
-                            Log.d(ContactsAsyncHelper.this, "Loading image: " + msg.arg1 +
-                                    " token: " + msg.what + " image URI: " + args.displayPhotoUri);
-                        } else {
-                            args.photo = null;
-                            args.photoIcon = null;
-                            Log.d(ContactsAsyncHelper.this, "Problem with image: " + msg.arg1 +
-                                    " token: " + msg.what + " image URI: " + args.displayPhotoUri +
-                                    ", using default image.");
-                        }
-                    } finally {
-                        if (inputStream != null) {
-                            try {
-                                inputStream.close();
-                            } catch (IOException e) {
-                                Log.e(this, "Unable to close input stream.", e);
-                            }
-                        }
-                    }
-                    break;
-                default:
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            ContactLookupMetrics.PHOTO_QUEUE_WAIT.recordSince(args.startNanos);
+
+            final long decodeStartNanos = SystemClock.elapsedRealtimeNanos();
+            Trace.beginSection(TRACE_SECTION_DECODE);
+            try {
+                final Bitmap bitmap = decodeSampledBitmap(args.context, args.displayPhotoUri,
+                        args.targetSize);
+                if (bitmap != null) {
+                    ContactPhotoCache.getInstance(args.context).put(args.displayPhotoUri,
+                            args.targetSize, bitmap);
+                    setPhoto(args, bitmap);
+
+                    Log.d(TAG, "Loading image token: " + token + " priority: "
+                            + PRIORITY_NAMES[priority] + " image URI: " + args.displayPhotoUri
+                            + " size: " + bitmap.getWidth() + "x" + bitmap.getHeight());
+                } else {
+                    args.photo = null;
+                    args.photoIcon = null;
+                    Log.d(TAG, "Problem with image token: " + token + " image URI: "
+                            + args.displayPhotoUri + ", using default image.");
+                }
+            } finally {
+                Trace.endSection();
+                ContactLookupMetrics.PHOTO_DECODE.recordSince(decodeStartNanos);
             }
 
             // send the reply to the enclosing class.
-            Message reply = ContactsAsyncHelper.this.mResultHandler.obtainMessage(msg.what);
-            reply.arg1 = msg.arg1;
-            reply.obj = msg.obj;
+            Message reply = sInstance.mResultHandler.obtainMessage(token);
+            reply.arg1 = EVENT_LOAD_IMAGE;
+            reply.obj = this;
             reply.sendToTarget();
         }
+    }
 
-        /**
-         * Returns a Bitmap object suitable for {@link Notification}'s large icon. This might
-         * return null when the given Drawable isn't BitmapDrawable, or if the system fails to
-         * create a scaled Bitmap for the Drawable.
-         */
-        private Bitmap getPhotoIconWhenAppropriate(Context context, Drawable photo) {
-            if (!(photo instanceof BitmapDrawable)) {
-                return null;
-            }
-            int iconSize = context.getResources()
-                    .getDimensionPixelSize(R.dimen.notification_icon_size);
-            Bitmap orgBitmap = ((BitmapDrawable) photo).getBitmap();
-            int orgWidth = orgBitmap.getWidth();
-            int orgHeight = orgBitmap.getHeight();
-            int longerEdge = orgWidth > orgHeight ? orgWidth : orgHeight;
-            // We want downscaled one only when the original icon is too big.
-            if (longerEdge > iconSize) {
-                float ratio = ((float) longerEdge) / iconSize;
-                int newWidth = (int) (orgWidth / ratio);
-                int newHeight = (int) (orgHeight / ratio);
-                // If the longer edge is much longer than the shorter edge, the latter may
-                // become 0 which will cause a crash.
-                if (newWidth <= 0 || newHeight <= 0) {
-                    Log.w(this, "Photo icon's width or height become 0.");
-                    return null;
-                }
+    /**
+     * Decodes the photo at the given Uri, subsampled so that its shorter edge is as close to
+     * {@code targetSize} as possible without going below it. The bounds of the photo are
+     * read first so that the full resolution photo is never allocated, and the photo is
+     * decoded into a bitmap from the {@link BitmapPool} when one of the right size is free.
+     *
+     * @return The decoded Bitmap, or null if the photo could not be opened or decoded.
+     */
+    private static Bitmap decodeSampledBitmap(Context context, Uri uri, int targetSize) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(context, uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
 
-                // It is sure ratio >= 1.0f in any case and thus the newly created Bitmap
-                // should be smaller than the original.
-                return Bitmap.createScaledBitmap(orgBitmap, newWidth, newHeight, true);
-            } else {
-                return orgBitmap;
+        final int sampleSize = computeSampleSize(options.outWidth, options.outHeight,
+                targetSize);
+        options.inSampleSize = sampleSize;
+        options.inJustDecodeBounds = false;
+        // Mutable, so that the bitmap can be reused once it is no longer displayed.
+        options.inMutable = true;
+
+        final BitmapPool pool = ContactPhotoCache.getInstance(context).getPool();
+        options.inBitmap = pool.get((options.outWidth + sampleSize - 1) / sampleSize,
+                (options.outHeight + sampleSize - 1) / sampleSize);
+        final Bitmap bitmap = decodeStream(context, uri, options);
+        if (bitmap != null || options.inBitmap == null) {
+            return bitmap;
+        }
+
+        // The pooled bitmap could not be decoded into; try again with a new one.
+        Log.d(TAG, "Could not reuse bitmap for " + uri);
+        pool.put(options.inBitmap);
+        options.inBitmap = null;
+        return decodeStream(context, uri, options);
+    }
+
+    private static Bitmap decodeStream(Context context, Uri uri, BitmapFactory.Options options) {
+        InputStream inputStream = null;
+        try {
+            inputStream = context.getContentResolver().openInputStream(uri);
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        } catch (Exception e) {
+            Log.e(TAG, "Error opening photo input stream", e);
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to close input stream.", e);
+                }
             }
         }
     }
 
+    private static void setPhoto(WorkerArgs args, Bitmap bitmap) {
+        args.photo = new BitmapDrawable(args.context.getResources(), bitmap);
+        args.photoIcon = bitmap;
+    }
+
+    /**
+     * Returns the largest power of two sample size which keeps the shorter edge of a
+     * {@code width} x {@code height} photo at or above {@code targetSize}.
+     */
+    private static int computeSampleSize(int width, int height, int targetSize) {
+        final int shorterEdge = Math.min(width, height);
+        int sampleSize = 1;
+        while (targetSize > 0 && shorterEdge / (sampleSize * 2) >= targetSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Returns the size in pixels the shorter edge of a photo for the given target should have.
+     */
+    private static int getTargetSize(Context context, int target) {
+        final Resources res = context.getResources();
+        switch (target) {
+            case TARGET_NOTIFICATION:
+                return res.getDimensionPixelSize(R.dimen.notification_icon_size);
+            case TARGET_CONFERENCE_ROW:
+                return res.getDimensionPixelSize(R.dimen.contact_browser_list_item_photo_size);
+            case TARGET_CALL_CARD:
+            default:
+                // The call card photo spans the width of the screen in portrait.
+                final DisplayMetrics metrics = res.getDisplayMetrics();
+                return Math.min(metrics.widthPixels, metrics.heightPixels);
+        }
+    }
+
     /**
      * Private constructor for static class
      */
     private ContactsAsyncHelper() {
-        HandlerThread thread = new HandlerThread("ContactsAsyncWorker");
-        thread.start();
-        sThreadHandler = new WorkerHandler(thread.getLooper());
+        sExecutor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int mCount;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        return new Thread(r, "ContactsAsyncWorker-" + ++mCount);
+                    }
+                });
     }
 
     /**
@@ -223,6 +343,24 @@ public class ContactsAsyncHelper {
      */
     public static final void startObtainPhotoAsync(int token, Context context, Uri displayPhotoUri,
             OnImageLoadCompleteListener listener, Object cookie) {
+        startObtainPhotoAsync(token, context, displayPhotoUri, listener, cookie, TARGET_CALL_CARD,
+                PRIORITY_PRIMARY, null);
+    }
+
+    /**
+     * Like {@link #startObtainPhotoAsync(int, Context, Uri, OnImageLoadCompleteListener, Object)},
+     * but decodes the photo for the given target and queues the load with the given priority.
+     *
+     * @param target One of {@link #TARGET_CALL_CARD}, {@link #TARGET_NOTIFICATION} or
+     * {@link #TARGET_CONFERENCE_ROW}.
+     * @param priority One of {@link #PRIORITY_PRIMARY}, {@link #PRIORITY_SECONDARY},
+     * {@link #PRIORITY_CONFERENCE} or {@link #PRIORITY_NOTIFICATION}.
+     * @param callId Id of the call the photo is for, which cancels the load when passed to
+     * {@link #cancelPhotoLoads}. Can be null.
+     */
+    public static final void startObtainPhotoAsync(int token, Context context, Uri displayPhotoUri,
+            OnImageLoadCompleteListener listener, Object cookie, int target, int priority,
+            String callId) {
         // in case the source caller info is null, the URI will be null as well.
         // just update using the placeholder image in this case.
         if (displayPhotoUri == null) {
@@ -239,18 +377,64 @@ public class ContactsAsyncHelper {
         args.context = context;
         args.displayPhotoUri = displayPhotoUri;
         args.listener = listener;
+        args.targetSize = getTargetSize(context, target);
+        args.startNanos = SystemClock.elapsedRealtimeNanos();
 
-        // setup message arguments
-        Message msg = sThreadHandler.obtainMessage(token);
-        msg.arg1 = EVENT_LOAD_IMAGE;
-        msg.obj = args;
+        final Bitmap cached = ContactPhotoCache.getInstance(context).get(displayPhotoUri,
+                args.targetSize);
+        if (cached != null) {
+            // Still reply asynchronously, as callers expect.
+            Log.d("startObjectPhotoAsync", "Image in cache: " + args.displayPhotoUri);
+            setPhoto(args, cached);
+            Message reply = sInstance.mResultHandler.obtainMessage(token);
+            reply.arg1 = EVENT_LOAD_IMAGE;
+            reply.obj = new PhotoLoadTask(token, args, priority, callId, 0);
+            reply.sendToTarget();
+            return;
+        }
+
+        final PhotoLoadTask task;
+        synchronized (sLoads) {
+            task = new PhotoLoadTask(token, args, priority, callId, sLoadSequence++);
+            sLoads.add(task);
+            sMaxQueueDepth = Math.max(sMaxQueueDepth, sExecutor.getQueue().size() + 1);
+        }
 
         Log.d("startObjectPhotoAsync", "Begin loading image: " + args.displayPhotoUri +
-                ", displaying default image for now.");
+                ", priority: " + PRIORITY_NAMES[priority] + ", displaying default image for now.");
 
-        // notify the thread to begin working
-        sThreadHandler.sendMessage(msg);
+        // notify the workers to begin working
+        sExecutor.execute(task);
     }
 
+    /**
+     * Cancels the photo loads for a call. Loads which did not start yet are dropped from the
+     * queue, and none of the loads will call their listener.
+     */
+    public static void cancelPhotoLoads(String callId) {
+        if (callId == null) {
+            return;
+        }
+        synchronized (sLoads) {
+            for (int i = 0; i < sLoads.size(); i++) {
+                final PhotoLoadTask task = sLoads.get(i);
+                if (callId.equals(task.callId) && !task.cancelled) {
+                    task.cancelled = true;
+                    sCancelledCount++;
+                    if (sExecutor.remove(task)) {
+                        // It will never reach the result handler.
+                        sLoads.remove(i--);
+                    }
+                }
+            }
+        }
+    }
 
+    public static void dump(PrintWriter pw) {
+        synchronized (sLoads) {
+            pw.println("ContactsAsyncHelper{queued=" + sExecutor.getQueue().size()
+                    + ", maxQueued=" + sMaxQueueDepth + ", unfinished=" + sLoads.size()
+                    + ", cancelled=" + sCancelledCount + "}");
+        }
+    }
 }
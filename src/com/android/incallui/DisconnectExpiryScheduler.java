@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+
+import com.android.contacts.common.testing.NeededForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of when disconnected calls should be removed from the {@link CallList}.
+ *
+ * Each call has at most one deadline, and a single timer is armed for the earliest of them. When
+ * it fires, every call whose deadline falls within {@link #BATCH_WINDOW_MS} is handed to the
+ * {@link Callback} in one batch so that listeners are only notified once per expiry tick.
+ */
+/* package */ class DisconnectExpiryScheduler {
+
+    /**
+     * Receives the calls whose deadline has passed.
+     */
+    /* package */ interface Callback {
+        /**
+         * @param calls The expired calls, in the order they were created. The list is only valid
+         *      for the duration of the callback.
+         */
+        void onCallsExpired(List<Call> calls);
+    }
+
+    /**
+     * Calls which expire this close to each other are removed together.
+     */
+    @NeededForTesting
+    static final long BATCH_WINDOW_MS = 50;
+
+    private static final int EVENT_EXPIRY_TICK = 1;
+
+    private final HashMap<Call, Long> mDeadlines = new HashMap<>();
+    private final ArrayList<Call> mExpiredCalls = new ArrayList<>();
+    private final Callback mCallback;
+
+    /** Uptime at which the timer is armed, or {@link Long#MAX_VALUE} if it is not. */
+    private long mArmedTime = Long.MAX_VALUE;
+
+    private final Handler mHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case EVENT_EXPIRY_TICK:
+                    mArmedTime = Long.MAX_VALUE;
+                    onTick(SystemClock.uptimeMillis());
+                    break;
+                default:
+                    Log.wtf(this, "Message not expected: " + msg.what);
+                    break;
+            }
+        }
+    };
+
+    /* package */ DisconnectExpiryScheduler(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Schedules the call to expire after the given delay, unless it is already scheduled, in
+     * which case its existing deadline is kept.
+     *
+     * @return {@code true} if the call was not scheduled before.
+     */
+    public boolean schedule(Call call, long delayMillis) {
+        if (mDeadlines.containsKey(call)) {
+            return false;
+        }
+        mDeadlines.put(call, SystemClock.uptimeMillis() + delayMillis);
+        armTimer();
+        return true;
+    }
+
+    /**
+     * Pushes the deadline of the call back so that it expires no earlier than the given delay
+     * from now. Schedules the call if it was not scheduled.
+     */
+    public void extend(Call call, long delayMillis) {
+        final long deadline = SystemClock.uptimeMillis() + delayMillis;
+        final Long current = mDeadlines.get(call);
+        if (current == null || current < deadline) {
+            mDeadlines.put(call, deadline);
+            armTimer();
+        }
+    }
+
+    /**
+     * @return {@code true} if the call was scheduled.
+     */
+    public boolean cancel(Call call) {
+        if (mDeadlines.remove(call) == null) {
+            return false;
+        }
+        armTimer();
+        return true;
+    }
+
+    /**
+     * Unschedules every call.
+     *
+     * @return The calls which were scheduled.
+     */
+    public List<Call> cancelAll() {
+        final ArrayList<Call> calls = new ArrayList<>(mDeadlines.keySet());
+        mDeadlines.clear();
+        armTimer();
+        return calls;
+    }
+
+    public boolean isScheduled(Call call) {
+        return mDeadlines.containsKey(call);
+    }
+
+    public int size() {
+        return mDeadlines.size();
+    }
+
+    /**
+     * Expires all calls due at or shortly after {@code now} and re-arms the timer for the rest.
+     */
+    @NeededForTesting
+    void onTick(long now) {
+        final long cutoff = now + BATCH_WINDOW_MS;
+        final Iterator<Map.Entry<Call, Long>> iterator = mDeadlines.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Call, Long> entry = iterator.next();
+            if (entry.getValue() <= cutoff) {
+                insertByCreation(mExpiredCalls, entry.getKey());
+                iterator.remove();
+            }
+        }
+        armTimer();
+
+        if (mExpiredCalls.isEmpty()) {
+            return;
+        }
+        Log.d(this, "Expiring disconnected calls: " + mExpiredCalls);
+        try {
+            mCallback.onCallsExpired(mExpiredCalls);
+        } finally {
+            mExpiredCalls.clear();
+        }
+    }
+
+    private static void insertByCreation(ArrayList<Call> calls, Call call) {
+        int position = calls.size();
+        while (position > 0 && calls.get(position - 1).getCreationSequence()
+                > call.getCreationSequence()) {
+            position--;
+        }
+        calls.add(position, call);
+    }
+
+    /**
+     * Arms the timer for the earliest deadline, or disarms it if nothing is scheduled.
+     */
+    private void armTimer() {
+        long earliest = Long.MAX_VALUE;
+        for (Long deadline : mDeadlines.values()) {
+            earliest = Math.min(earliest, deadline);
+        }
+        if (earliest == mArmedTime) {
+            return;
+        }
+        mHandler.removeMessages(EVENT_EXPIRY_TICK);
+        mArmedTime = earliest;
+        if (earliest != Long.MAX_VALUE) {
+            mHandler.sendEmptyMessageAtTime(EVENT_EXPIRY_TICK, earliest);
+        }
+    }
+}
@@ -416,16 +416,35 @@ public class InCallPresenter implements CallList.Listener,
         }
     }
 
+    /**
+     * Called when there is a change to the call list. Only the listeners are told about a delta
+     * which adds, removes and changes the state of no call, as long as the In-Call state computed
+     * from the call list is the one already set: the In-Call state and the active, background
+     * and outgoing calls then are what the last full pass saw, so {@link #startOrFinishUi}
+     * would return early and the keyguard would be dismissed with the same argument again.
+     */
+    @Override
+    public void onCallListChange(CallList callList, CallListDelta delta) {
+        if (delta.isEmpty()) {
+            return;
+        }
+        if (delta.hasStructuralChanges() || mAwaitingCallListUpdate || isCallCardAnimating()
+                || getPotentialStateFromCallList(callList) != mInCallState) {
+            onCallListChange(callList);
+            return;
+        }
+        Log.d(this, "onCallListChange: calls updated in state " + mInCallState);
+        notifyStateListeners(mInCallState, callList);
+    }
+
     /**
      * Called when there is a change to the call list.
      * Sets the In-Call state for the entire in-call app based on the information it gets from
      * CallList. Dispatches the in-call state to all listeners. Can trigger the creation or
      * destruction of the UI based on the states that is calculates.
      */
-    @Override
     public void onCallListChange(CallList callList) {
-        if (mInCallActivity != null && mInCallActivity.getCallCardFragment() != null &&
-                mInCallActivity.getCallCardFragment().isAnimating()) {
+        if (isCallCardAnimating()) {
             mAwaitingCallListUpdate = true;
             return;
         }
@@ -446,10 +465,7 @@ public class InCallPresenter implements CallList.Listener,
         mInCallState = newState;
 
         // notify listeners of new state
-        for (InCallStateListener listener : mListeners) {
-            Log.d(this, "Notify " + listener + " of state " + mInCallState.toString());
-            listener.onStateChange(oldState, mInCallState, callList);
-        }
+        notifyStateListeners(oldState, callList);
 
         if (isActivityStarted()) {
             final boolean hasCall = callList.getActiveOrBackgroundCall() != null ||
@@ -458,6 +474,18 @@ public class InCallPresenter implements CallList.Listener,
         }
     }
 
+    private void notifyStateListeners(InCallState oldState, CallList callList) {
+        for (InCallStateListener listener : mListeners) {
+            Log.d(this, "Notify " + listener + " of state " + mInCallState.toString());
+            listener.onStateChange(oldState, mInCallState, callList);
+        }
+    }
+
+    private boolean isCallCardAnimating() {
+        return mInCallActivity != null && mInCallActivity.getCallCardFragment() != null
+                && mInCallActivity.getCallCardFragment().isAnimating();
+    }
+
     /**
      * Called when there is a new incoming call.
      *
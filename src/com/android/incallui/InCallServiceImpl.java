@@ -23,6 +23,9 @@ import android.telecom.Call;
 import android.telecom.CallAudioState;
 import android.telecom.InCallService;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * Used to receive updates about calls from the Telecomm component.  This service is bound to
  * Telecomm while there exist calls which potentially require UI. This includes ringing (incoming),
@@ -43,7 +46,14 @@ public class InCallServiceImpl extends InCallService {
 
     @Override
     public void onCallAdded(Call call) {
-        CallList.getInstance().onCallAdded(call);
+        final com.android.incallui.Call addedCall = new com.android.incallui.Call(call);
+        // Start the contact lookup before the call list tells the presenters about the call. Its
+        // reads run in the background, so this does not hold up adding the call.
+        final int state = addedCall.getState();
+        ContactInfoCache.getInstance(getApplicationContext()).prefetchInfo(addedCall,
+                state == com.android.incallui.Call.State.INCOMING
+                        || state == com.android.incallui.Call.State.CALL_WAITING);
+        CallList.getInstance().onCallAdded(addedCall);
         InCallPresenter.getInstance().onCallAdded(call);
     }
 
@@ -62,6 +72,7 @@ public class InCallServiceImpl extends InCallService {
     public IBinder onBind(Intent intent) {
         final Context context = getApplicationContext();
         final ContactInfoCache contactInfoCache = ContactInfoCache.getInstance(context);
+        CallerInfo.warmUpGeocoder(context);
         InCallPresenter.getInstance().setUp(
                 getApplicationContext(),
                 CallList.getInstance(),
@@ -80,6 +91,19 @@ public class InCallServiceImpl extends InCallService {
         return super.onBind(intent);
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        ContactInfoCache.getInstance(getApplicationContext()).dump(pw);
+        ContactPhotoCache.getInstance(getApplicationContext()).dump(pw);
+        ContactsAsyncHelper.dump(pw);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ContactPhotoCache.getInstance(getApplicationContext()).trimMemory(level);
+    }
+
     @Override
     public boolean onUnbind(Intent intent) {
         super.onUnbind(intent);
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.os.SystemClock;
+
+import com.android.contacts.common.testing.NeededForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Histogram of durations with fixed buckets. Recording does not allocate, so it may be used on
+ * the paths being measured. Thread safe.
+ */
+/* package */ final class LatencyHistogram {
+
+    /** Upper bounds of the buckets, in microseconds. The last bucket holds everything above. */
+    private static final long[] BUCKET_BOUNDS_US = new long[] {
+            250, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000, 200000, 500000, 1000000,
+            2000000, 5000000 };
+
+    private final String mName;
+    private final int[] mBucketCounts = new int[BUCKET_BOUNDS_US.length + 1];
+    private int mCount;
+    private long mTotalUs;
+    private long mMaxUs;
+
+    /* package */ LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, as returned by
+     * {@link SystemClock#elapsedRealtimeNanos}.
+     */
+    public void recordSince(long startNanos) {
+        record((SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
+    }
+
+    public synchronized void record(long durationUs) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_US.length && durationUs > BUCKET_BOUNDS_US[bucket]) {
+            bucket++;
+        }
+        mBucketCounts[bucket]++;
+        mCount++;
+        mTotalUs += durationUs;
+        if (durationUs > mMaxUs) {
+            mMaxUs = durationUs;
+        }
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    @NeededForTesting
+    synchronized int getBucketCount(int bucket) {
+        return mBucketCounts[bucket];
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.print(mName);
+        pw.print(": n=");
+        pw.print(mCount);
+        if (mCount == 0) {
+            pw.println();
+            return;
+        }
+        pw.print(" avg=");
+        pw.print(mTotalUs / mCount);
+        pw.print("us max=");
+        pw.print(mMaxUs);
+        pw.print("us [");
+        boolean first = true;
+        for (int i = 0; i < mBucketCounts.length; i++) {
+            if (mBucketCounts[i] == 0) {
+                continue;
+            }
+            if (!first) {
+                pw.print(", ");
+            }
+            first = false;
+            pw.print(i < BUCKET_BOUNDS_US.length ? "<=" + BUCKET_BOUNDS_US[i]
+                    : ">" + BUCKET_BOUNDS_US[BUCKET_BOUNDS_US.length - 1]);
+            pw.print("us:");
+            pw.print(mBucketCounts[i]);
+        }
+        pw.println("]");
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.text.TextUtils;
+
+import com.android.incallui.ContactInfoCache.ContactCacheEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Small on-disk store of recently resolved caller information, keyed by normalized number, which
+ * survives the InCallUI process being killed between calls.
+ *
+ * The file is an append-only log of put and delete records. It is memory-mapped once loaded, so
+ * {@link #get} only decodes the record it needs and can be called synchronously from the main
+ * thread. Writes are buffered in memory and appended in batches on a worker thread, and the log
+ * is rewritten without its superseded records once they make up most of the file.
+ *
+ * Only the name, label, lookup key and photo URI are stored. Entries are hints to show before
+ * the contact lookup completes and must not be treated as authoritative.
+ */
+/* package */ class PersistentContactStore {
+
+    private static final String TAG = PersistentContactStore.class.getSimpleName();
+
+    private static final String FILE_NAME = "caller_id.store";
+    private static final int MAGIC = 0x43494453;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+
+    /** Maximum number of numbers remembered; the least recently written are dropped first. */
+    private static final int MAX_ENTRIES = 500;
+
+    /** Delay used to batch writes which happen close together. */
+    private static final long FLUSH_DELAY_MS = 2000;
+
+    /** Compaction only happens once the file is at least this big... */
+    private static final int COMPACT_MIN_BYTES = 64 * 1024;
+    /** ...and at most this fraction of its records are still live. */
+    private static final float COMPACT_MAX_LIVE_RATIO = 0.5f;
+
+    /** Pending value recording that a number was removed. */
+    private static final ContactCacheEntry TOMBSTONE = new ContactCacheEntry();
+
+    private final File mFile;
+    private final Handler mWorker;
+
+    /** Offset of the body of the live record of each number, in write order. */
+    private final LinkedHashMap<String, Integer> mOffsets = new LinkedHashMap<>();
+    /** Writes which have not been appended to the file yet, in write order. */
+    private final LinkedHashMap<String, ContactCacheEntry> mPendingWrites = new LinkedHashMap<>();
+    private MappedByteBuffer mMappedFile;
+    private int mRecordCount;
+    private boolean mLoaded;
+    /** Set if no store file could be created; writes are dropped from then on. */
+    private boolean mDisabled;
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+            maybeCompact();
+        }
+    };
+
+    /* package */ PersistentContactStore(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+
+        final HandlerThread thread = new HandlerThread("ContactStoreWorker");
+        thread.start();
+        mWorker = new Handler(thread.getLooper());
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * @return The stored entry for the number, or {@code null} if there is none or the store has
+     *      not finished loading yet.
+     */
+    public synchronized ContactCacheEntry get(String key) {
+        if (key == null || !mLoaded) {
+            return null;
+        }
+        final ContactCacheEntry pending = mPendingWrites.get(key);
+        if (pending != null) {
+            return pending == TOMBSTONE ? null : copyOf(pending);
+        }
+        final Integer offset = mOffsets.get(key);
+        if (offset == null || mMappedFile == null) {
+            return null;
+        }
+        try {
+            return readEntry(mMappedFile, offset);
+        } catch (BufferUnderflowException e) {
+            Log.e(TAG, "Corrupt record for stored number", e);
+            return null;
+        }
+    }
+
+    public synchronized void put(String key, ContactCacheEntry entry) {
+        if (key == null || entry == null || mDisabled) {
+            return;
+        }
+        final ContactCacheEntry stored = copyOf(entry);
+        if (isSameStoredEntry(stored, get(key))) {
+            return;
+        }
+        mPendingWrites.remove(key);
+        mPendingWrites.put(key, stored);
+        scheduleFlush();
+    }
+
+    public synchronized void remove(String key) {
+        if (key == null || mDisabled || (!mOffsets.containsKey(key) && !mPendingWrites.containsKey(key))) {
+            return;
+        }
+        mPendingWrites.remove(key);
+        mPendingWrites.put(key, TOMBSTONE);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mWorker.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Reads the log and builds the index of live records. Runs on the worker thread.
+     */
+    private void load() {
+        int validLength = HEADER_BYTES;
+        try {
+            if (!mFile.exists() || mFile.length() < HEADER_BYTES) {
+                writeHeader(mFile);
+            }
+            final MappedByteBuffer mapped = map(mFile);
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                Log.i(TAG, "Discarding caller id store with unknown format");
+                writeHeader(mFile);
+                setMapped(map(mFile), new LinkedHashMap<String, Integer>(), 0);
+                return;
+            }
+
+            final LinkedHashMap<String, Integer> offsets = new LinkedHashMap<>();
+            int recordCount = 0;
+            mapped.position(HEADER_BYTES);
+            try {
+                while (mapped.remaining() >= 4) {
+                    final int length = mapped.getInt();
+                    if (length <= 0 || length > mapped.remaining()) {
+                        break;
+                    }
+                    final int bodyOffset = mapped.position();
+                    final byte op = mapped.get();
+                    final String key = readString(mapped);
+                    offsets.remove(key);
+                    if (op == OP_PUT) {
+                        offsets.put(key, bodyOffset);
+                    }
+                    mapped.position(bodyOffset + length);
+                    validLength = mapped.position();
+                    recordCount++;
+                }
+            } catch (BufferUnderflowException e) {
+                Log.w(TAG, "Caller id store has a truncated record");
+            }
+
+            if (validLength < mFile.length()) {
+                // Drop a record which was only partially written when the process died.
+                truncate(mFile, validLength);
+                setMapped(map(mFile), offsets, recordCount);
+            } else {
+                setMapped(mapped, offsets, recordCount);
+            }
+            Log.d(TAG, "Loaded " + offsets.size() + " stored numbers");
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to load caller id store, starting a new one", e);
+            startOver();
+        }
+    }
+
+    /**
+     * Replaces an unreadable log with an empty one, or stops accepting writes if that fails too
+     * so that they do not pile up in memory. Runs on the worker thread.
+     */
+    private void startOver() {
+        try {
+            mFile.delete();
+            writeHeader(mFile);
+            setMapped(map(mFile), new LinkedHashMap<String, Integer>(), 0);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to create caller id store, disabling it", e);
+            synchronized (this) {
+                mDisabled = true;
+                mLoaded = true;
+                mPendingWrites.clear();
+            }
+        }
+    }
+
+    /**
+     * Appends the pending writes to the log in a single write. Runs on the worker thread.
+     */
+    private void flush() {
+        final ArrayList<String> keys;
+        final ArrayList<ContactCacheEntry> entries;
+        final int startOffset;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mPendingWrites.isEmpty() || mMappedFile == null) {
+                return;
+            }
+            keys = new ArrayList<>(mPendingWrites.keySet());
+            entries = new ArrayList<>(mPendingWrites.values());
+            startOffset = mMappedFile.capacity();
+        }
+
+        final int[] bodyOffsets = new int[keys.size()];
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            for (int i = 0; i < keys.size(); i++) {
+                bodyOffsets[i] = startOffset + out.size() + 4;
+                writeRecord(out, keys.get(i), entries.get(i));
+            }
+            out.flush();
+
+            final FileOutputStream stream = new FileOutputStream(mFile, true /* append */);
+            try {
+                stream.write(bytes.toByteArray());
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+
+            final MappedByteBuffer mapped = map(mFile);
+            synchronized (this) {
+                for (int i = 0; i < keys.size(); i++) {
+                    final String key = keys.get(i);
+                    mOffsets.remove(key);
+                    if (entries.get(i) != TOMBSTONE) {
+                        mOffsets.put(key, bodyOffsets[i]);
+                    }
+                    // Only drop the pending write if it was not replaced in the meantime.
+                    if (mPendingWrites.get(key) == entries.get(i)) {
+                        mPendingWrites.remove(key);
+                    }
+                }
+                trimToMaxEntries();
+                mMappedFile = mapped;
+                mRecordCount += keys.size();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write caller id store", e);
+        }
+    }
+
+    /**
+     * Rewrites the log with only its live records once most of it is superseded. Runs on the
+     * worker thread.
+     */
+    private void maybeCompact() {
+        final ArrayList<String> keys;
+        final ArrayList<ContactCacheEntry> entries;
+        synchronized (this) {
+            if (mMappedFile == null || mMappedFile.capacity() < COMPACT_MIN_BYTES
+                    || mOffsets.size() > mRecordCount * COMPACT_MAX_LIVE_RATIO) {
+                return;
+            }
+            keys = new ArrayList<>(mOffsets.size());
+            entries = new ArrayList<>(mOffsets.size());
+            for (Map.Entry<String, Integer> offset : mOffsets.entrySet()) {
+                try {
+                    entries.add(readEntry(mMappedFile, offset.getValue()));
+                    keys.add(offset.getKey());
+                } catch (BufferUnderflowException e) {
+                    Log.e(TAG, "Dropping corrupt record for stored number", e);
+                }
+            }
+        }
+
+        final File tempFile = new File(mFile.getPath() + ".tmp");
+        try {
+            final LinkedHashMap<String, Integer> offsets = new LinkedHashMap<>();
+            final FileOutputStream stream = new FileOutputStream(tempFile);
+            try {
+                final DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(stream));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (int i = 0; i < keys.size(); i++) {
+                    offsets.put(keys.get(i), out.size() + 4);
+                    writeRecord(out, keys.get(i), entries.get(i));
+                }
+                out.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            if (!tempFile.renameTo(mFile)) {
+                throw new IOException("Unable to replace caller id store");
+            }
+            final MappedByteBuffer mapped = map(mFile);
+            Log.d(TAG, "Compacted caller id store from " + mRecordCount + " to " + keys.size()
+                    + " records");
+            setMapped(mapped, offsets, keys.size());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to compact caller id store", e);
+            tempFile.delete();
+        }
+    }
+
+    private synchronized void setMapped(MappedByteBuffer mapped,
+            LinkedHashMap<String, Integer> offsets, int recordCount) {
+        mMappedFile = mapped;
+        mOffsets.clear();
+        mOffsets.putAll(offsets);
+        mRecordCount = recordCount;
+        mLoaded = true;
+        trimToMaxEntries();
+    }
+
+    private void trimToMaxEntries() {
+        final Iterator<Map.Entry<String, Integer>> iterator = mOffsets.entrySet().iterator();
+        while (mOffsets.size() > MAX_ENTRIES && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            randomAccessFile.close();
+        }
+    }
+
+    private static void writeHeader(File file) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void truncate(File file, int length) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Writes a length-prefixed record. The body starts 4 bytes after the current position.
+     */
+    private static void writeRecord(DataOutputStream out, String key, ContactCacheEntry entry)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        final DataOutputStream body = new DataOutputStream(bytes);
+        if (entry == TOMBSTONE) {
+            body.writeByte(OP_DELETE);
+            writeString(body, key);
+        } else {
+            body.writeByte(OP_PUT);
+            writeString(body, key);
+            writeString(body, entry.name);
+            writeString(body, entry.label);
+            writeString(body, entry.lookupKey);
+            writeString(body, entry.displayPhotoUri == null
+                    ? null : entry.displayPhotoUri.toString());
+        }
+        body.flush();
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    private static ContactCacheEntry readEntry(MappedByteBuffer mapped, int bodyOffset) {
+        final ByteBuffer buffer = mapped.duplicate();
+        buffer.position(bodyOffset + 1 /* op */);
+        readString(buffer); // key
+        final ContactCacheEntry entry = new ContactCacheEntry();
+        entry.name = readString(buffer);
+        entry.label = readString(buffer);
+        entry.lookupKey = readString(buffer);
+        final String photoUri = readString(buffer);
+        entry.displayPhotoUri = photoUri == null ? null : Uri.parse(photoUri);
+        return entry;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isSameStoredEntry(ContactCacheEntry a, ContactCacheEntry b) {
+        return b != null
+                && TextUtils.equals(a.name, b.name)
+                && TextUtils.equals(a.label, b.label)
+                && TextUtils.equals(a.lookupKey, b.lookupKey)
+                && Objects.equals(a.displayPhotoUri, b.displayPhotoUri);
+    }
+
+    private static ContactCacheEntry copyOf(ContactCacheEntry entry) {
+        final ContactCacheEntry copy = new ContactCacheEntry();
+        copy.name = entry.name;
+        copy.label = entry.label;
+        copy.lookupKey = entry.lookupKey;
+        copy.displayPhotoUri = entry.displayPhotoUri;
+        return copy;
+    }
+}
@@ -57,6 +57,17 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
     // Notification for incoming calls. This is interruptive and will show up as a HUN.
     private static final int NOTIFICATION_INCOMING_CALL = 2;
 
+    /**
+     * Call fields which are never displayed in the notification; updates which only change these
+     * do not require the notification to be rebuilt.
+     */
+    private static final int FIELDS_NOT_SHOWN = Call.ChangedFields.CONFERENCEABLE_CALLS
+            | Call.ChangedFields.CANNED_RESPONSES
+            | Call.ChangedFields.VIDEO_CALL
+            | Call.ChangedFields.STATUS_HINTS
+            | Call.ChangedFields.PARENT
+            | Call.ChangedFields.CHILDREN;
+
     private final Context mContext;
     private final ContactInfoCache mContactInfoCache;
     private final NotificationManager mNotificationManager;
@@ -68,6 +79,9 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
     private String mSavedContentTitle;
     private String mCallId = null;
     private InCallState mInCallState;
+    /** Fields of the call with id {@link #mCallId} which changed since the last rebuild. */
+    private int mPendingChangedFields = Call.ChangedFields.ALL;
+    private boolean mSavedIsShowingInCallUi;
 
     public StatusBarNotifier(Context context, ContactInfoCache contactInfoCache) {
         Preconditions.checkNotNull(context);
@@ -118,6 +132,7 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
      * @see #updateInCallNotification(InCallState,CallList)
      */
     private void cancelNotification() {
+        mPendingChangedFields = Call.ChangedFields.ALL;
         if (!TextUtils.isEmpty(mCallId)) {
             CallList.getInstance().removeCallUpdateListener(mCallId, this);
             mCallId = null;
@@ -164,12 +179,27 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
     private void showNotification(final Call call) {
         final boolean isIncoming = (call.getState() == Call.State.INCOMING ||
                 call.getState() == Call.State.CALL_WAITING);
-
-        if (!TextUtils.isEmpty(mCallId)) {
-            CallList.getInstance().removeCallUpdateListener(mCallId, this);
+        final boolean isShowingInCallUi = InCallPresenter.getInstance().isShowingInCallUi();
+
+        if (call.getId().equals(mCallId)) {
+            // Skip the contact lookup and rebuild if nothing the notification shows has changed
+            // since it was last built for this call.
+            if (mCurrentNotification != NOTIFICATION_NONE
+                    && mCallState == call.getState()
+                    && mSavedIsShowingInCallUi == isShowingInCallUi
+                    && (mPendingChangedFields & ~FIELDS_NOT_SHOWN) == 0) {
+                Log.v(this, "showNotification: no visible changes for " + mCallId);
+                return;
+            }
+        } else {
+            if (!TextUtils.isEmpty(mCallId)) {
+                CallList.getInstance().removeCallUpdateListener(mCallId, this);
+            }
+            mCallId = call.getId();
+            CallList.getInstance().addCallUpdateListener(call.getId(), this);
         }
-        mCallId = call.getId();
-        CallList.getInstance().addCallUpdateListener(call.getId(), this);
+        mPendingChangedFields = Call.ChangedFields.NONE;
+        mSavedIsShowingInCallUi = isShowingInCallUi;
 
         // we make a call to the contact info cache to query for supplemental data to what the
         // call provides.  This includes the contact name and photo.
@@ -231,7 +261,7 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
         }
 
         if (largeIcon != null) {
-            largeIcon = getRoundedIcon(largeIcon);
+            largeIcon = getRoundedIcon(largeIcon, getLargeIconUri(contactInfo));
         }
 
         /*
@@ -391,7 +421,15 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
         return largeIcon;
     }
 
-    private Bitmap getRoundedIcon(Bitmap bitmap) {
+    /**
+     * Returns the Uri of the photo {@link #getLargeIconToDisplay} picks, or null if the large icon
+     * is not a photo with a Uri.
+     */
+    private Uri getLargeIconUri(ContactCacheEntry contactInfo) {
+        return contactInfo.photo instanceof BitmapDrawable ? contactInfo.loadedPhotoUri : null;
+    }
+
+    private Bitmap getRoundedIcon(Bitmap bitmap, Uri photoUri) {
         if (bitmap == null) {
             return null;
         }
@@ -399,7 +437,13 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
                 android.R.dimen.notification_large_icon_height);
         final int width = (int) mContext.getResources().getDimension(
                 android.R.dimen.notification_large_icon_width);
-        return BitmapUtil.getRoundedBitmap(bitmap, width, height);
+        final ContactPhotoCache photoCache = ContactPhotoCache.getInstance(mContext);
+        Bitmap rounded = photoCache.get(photoUri, width, true /* circular */);
+        if (rounded == null) {
+            rounded = BitmapUtil.getRoundedBitmap(bitmap, width, height);
+            photoCache.put(photoUri, width, true /* circular */, rounded);
+        }
+        return rounded;
     }
 
     /**
@@ -638,7 +682,9 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
 
     @Override
     public void onCallChanged(Call call) {
-        // no-op
+        // Remember what changed; the notification is rebuilt on the next state change only if
+        // something it displays is affected.
+        mPendingChangedFields |= call.getChangedFields();
     }
 
     /**
@@ -652,7 +698,10 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
         if (sessionModificationState == Call.SessionModificationState.NO_REQUEST) {
             if (mCallId != null) {
                 CallList.getInstance().removeCallUpdateListener(mCallId, this);
+                // The listener is re-registered when the notification is next shown.
+                mCallId = null;
             }
+            mPendingChangedFields = Call.ChangedFields.ALL;
 
             updateNotification(mInCallState, CallList.getInstance());
         }
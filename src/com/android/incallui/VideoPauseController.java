@@ -154,17 +154,18 @@ class VideoPauseController implements InCallStateListener, IncomingCallListener,
     public void onStateChange(InCallState oldState, InCallState newState, CallList callList) {
         log("onStateChange, OldState=" + oldState + " NewState=" + newState);
 
+        final CallListSnapshot snapshot = callList.getSnapshot();
         Call call = null;
         if (newState == InCallState.INCOMING) {
-            call = callList.getIncomingCall();
+            call = snapshot.getIncomingCall();
         } else if (newState == InCallState.WAITING_FOR_ACCOUNT) {
-            call = callList.getWaitingForAccountCall();
+            call = snapshot.getWaitingForAccountCall();
         } else if (newState == InCallState.PENDING_OUTGOING) {
-            call = callList.getPendingOutgoingCall();
+            call = snapshot.getPendingOutgoingCall();
         } else if (newState == InCallState.OUTGOING) {
-            call = callList.getOutgoingCall();
+            call = snapshot.getOutgoingCall();
         } else {
-            call = callList.getActiveCall();
+            call = snapshot.getActiveCall();
         }
 
         boolean hasPrimaryCallChanged = !areSame(call, mPrimaryCallContext);
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+
+public class BitmapPoolTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testReturnsLargeEnoughBitmap() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        final Bitmap small = newBitmap(10, 10);
+        final Bitmap large = newBitmap(100, 100);
+        assertTrue(pool.put(small));
+        assertTrue(pool.put(large));
+
+        assertSame(large, pool.get(90, 90));
+        assertNull(pool.get(90, 90));
+        assertSame(small, pool.get(8, 8));
+        assertEquals(0, pool.getByteCount());
+    }
+
+    @SmallTest
+    public void testDoesNotReturnMuchLargerBitmap() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        assertTrue(pool.put(newBitmap(100, 100)));
+
+        assertNull(pool.get(10, 10));
+    }
+
+    @SmallTest
+    public void testRefusesBitmapsBeyondCap() {
+        final BitmapPool pool = new BitmapPool(100 * 100 * BitmapPool.BYTES_PER_PIXEL);
+        assertTrue(pool.put(newBitmap(100, 100)));
+        assertFalse(pool.put(newBitmap(10, 10)));
+        assertEquals(100 * 100 * BitmapPool.BYTES_PER_PIXEL, pool.getByteCount());
+    }
+
+    @SmallTest
+    public void testRefusesImmutableBitmaps() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        assertFalse(pool.put(newBitmap(10, 10).copy(Bitmap.Config.ARGB_8888, false)));
+        assertFalse(pool.put(newBitmap(10, 10).copy(Bitmap.Config.RGB_565, true)));
+    }
+
+    /**
+     * Compares the memory allocated by decoding a photo over and over into new bitmaps against
+     * decoding it into bitmaps from the pool, as happens on back to back calls. Results are
+     * written to the log.
+     */
+    @SuppressWarnings("deprecation")
+    @LargeTest
+    public void testDecodeBenchmark() {
+        final int iterations = 50;
+        final byte[] photo = encodePhoto(1280, 960);
+        // Warm up both paths before measuring them.
+        decode(photo, null, iterations / 10);
+        decode(photo, new BitmapPool(8 * 1024 * 1024), iterations / 10);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocSize();
+            final long newStart = SystemClock.elapsedRealtimeNanos();
+            decode(photo, null, iterations);
+            final long newNanos = SystemClock.elapsedRealtimeNanos() - newStart;
+            final long newBytes = Debug.getThreadAllocSize();
+
+            Debug.resetThreadAllocSize();
+            final long pooledStart = SystemClock.elapsedRealtimeNanos();
+            decode(photo, new BitmapPool(8 * 1024 * 1024), iterations);
+            final long pooledNanos = SystemClock.elapsedRealtimeNanos() - pooledStart;
+            final long pooledBytes = Debug.getThreadAllocSize();
+
+            Log.i(this, "Photo decode: new bitmaps " + (newBytes / iterations) + " bytes, "
+                    + (newNanos / iterations / 1000) + "us per decode; pooled bitmaps "
+                    + (pooledBytes / iterations) + " bytes, "
+                    + (pooledNanos / iterations / 1000) + "us per decode");
+            assertTrue(pooledBytes < newBytes);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    private static void decode(byte[] photo, BitmapPool pool, int iterations) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 2;
+        options.inMutable = true;
+        for (int i = 0; i < iterations; i++) {
+            options.inBitmap = pool == null ? null : pool.get(640, 480);
+            final Bitmap bitmap = BitmapFactory.decodeByteArray(photo, 0, photo.length, options);
+            assertNotNull(bitmap);
+            if (pool != null) {
+                pool.put(bitmap);
+            }
+        }
+    }
+
+    private static byte[] encodePhoto(int width, int height) {
+        final Bitmap bitmap = newBitmap(width, height);
+        bitmap.eraseColor(Color.GRAY);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        return out.toByteArray();
+    }
+
+    private static Bitmap newBitmap(int width, int height) {
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.incallui.CallList.CallUpdateListener;
+
+@SmallTest
+public class CallUpdateListenerRegistryTest extends AndroidTestCase {
+
+    private static final String CALL_ID = "call1";
+    private static final String OTHER_CALL_ID = "call2";
+
+    private CallUpdateListenerRegistry mRegistry;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mRegistry = new CallUpdateListenerRegistry();
+    }
+
+    public void testAddAndRemove() {
+        final CountingListener first = new CountingListener();
+        final CountingListener second = new CountingListener();
+        mRegistry.add(CALL_ID, first);
+        mRegistry.add(CALL_ID, second);
+        assertEquals(2, mRegistry.get(CALL_ID).length);
+        assertEquals(0, mRegistry.get(OTHER_CALL_ID).length);
+
+        mRegistry.remove(CALL_ID, first);
+        assertEquals(1, mRegistry.get(CALL_ID).length);
+        assertSame(second, mRegistry.get(CALL_ID)[0]);
+
+        mRegistry.remove(CALL_ID, second);
+        assertEquals(0, mRegistry.get(CALL_ID).length);
+        assertEquals(0, mRegistry.size());
+    }
+
+    public void testRemoveDuringDispatchDoesNotSkipListeners() {
+        final CountingListener last = new CountingListener();
+        final CountingListener removing = new CountingListener() {
+            @Override
+            public void onCallChanged(Call call) {
+                super.onCallChanged(call);
+                mRegistry.remove(CALL_ID, this);
+            }
+        };
+        mRegistry.add(CALL_ID, removing);
+        mRegistry.add(CALL_ID, last);
+
+        dispatch(CALL_ID);
+        assertEquals(1, removing.mChangeCount);
+        assertEquals(1, last.mChangeCount);
+
+        dispatch(CALL_ID);
+        assertEquals(1, removing.mChangeCount);
+        assertEquals(2, last.mChangeCount);
+    }
+
+    public void testAddDuringDispatchTakesEffectNextTime() {
+        final CountingListener added = new CountingListener();
+        final CountingListener adding = new CountingListener() {
+            @Override
+            public void onCallChanged(Call call) {
+                super.onCallChanged(call);
+                if (mChangeCount == 1) {
+                    mRegistry.add(CALL_ID, added);
+                }
+            }
+        };
+        mRegistry.add(CALL_ID, adding);
+
+        final CallUpdateListener[] snapshot = mRegistry.get(CALL_ID);
+        dispatch(CALL_ID);
+        assertEquals(1, snapshot.length);
+        assertEquals(0, added.mChangeCount);
+
+        dispatch(CALL_ID);
+        assertEquals(1, added.mChangeCount);
+    }
+
+    public void testEvictDropsAllListenersOfTheCall() {
+        mRegistry.add(CALL_ID, new CountingListener());
+        mRegistry.add(CALL_ID, new CountingListener());
+        mRegistry.add(OTHER_CALL_ID, new CountingListener());
+
+        assertEquals(2, mRegistry.evict(CALL_ID));
+        assertEquals(0, mRegistry.get(CALL_ID).length);
+        assertEquals(1, mRegistry.size());
+        assertEquals(0, mRegistry.evict(CALL_ID));
+    }
+
+    private void dispatch(String callId) {
+        final CallUpdateListener[] listeners = mRegistry.get(callId);
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onCallChanged(null);
+        }
+    }
+
+    private static class CountingListener implements CallUpdateListener {
+        int mChangeCount;
+
+        @Override
+        public void onCallChanged(Call call) {
+            mChangeCount++;
+        }
+
+        @Override
+        public void onSessionModificationStateChange(int sessionModificationState) {}
+
+        @Override
+        public void onLastForwardedNumberChange() {}
+
+        @Override
+        public void onChildNumberChange() {}
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.PhoneLookup;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests decoding a {@link PhoneLookup} cursor with and without
+ * {@link CallerInfo#PHONE_LOOKUP_PROJECTION}.
+ */
+public class CallerInfoTest extends AndroidTestCase {
+
+    private static final Uri LOOKUP_URI = Uri.withAppendedPath(
+            PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, "6505551234");
+
+    private static final long CONTACT_ID = 42;
+    private static final String NAME = "Jane Doe";
+    private static final String NUMBER = "650-555-1234";
+    private static final String NORMALIZED_NUMBER = "+16505551234";
+    private static final String LOOKUP_KEY = "0r42-2A4A";
+    private static final String PHOTO_URI = "content://com.android.contacts/display_photo/7";
+    private static final String THUMBNAIL_URI = "content://com.android.contacts/contacts/42/photo";
+
+    /** The columns a {@code null} projection returns, in the provider's order. */
+    private static final String[] ALL_COLUMNS = new String[] {
+            PhoneLookup._ID,
+            PhoneLookup.LOOKUP_KEY,
+            PhoneLookup.DISPLAY_NAME,
+            PhoneLookup.LAST_TIME_CONTACTED,
+            PhoneLookup.TIMES_CONTACTED,
+            PhoneLookup.STARRED,
+            PhoneLookup.IN_DEFAULT_DIRECTORY,
+            PhoneLookup.IN_VISIBLE_GROUP,
+            PhoneLookup.PHOTO_FILE_ID,
+            PhoneLookup.PHOTO_ID,
+            PhoneLookup.PHOTO_URI,
+            PhoneLookup.PHOTO_THUMBNAIL_URI,
+            PhoneLookup.CUSTOM_RINGTONE,
+            PhoneLookup.HAS_PHONE_NUMBER,
+            PhoneLookup.SEND_TO_VOICEMAIL,
+            PhoneLookup.IS_USER_PROFILE,
+            PhoneLookup.CONTACT_LAST_UPDATED_TIMESTAMP,
+            PhoneLookup.NUMBER,
+            PhoneLookup.TYPE,
+            PhoneLookup.LABEL,
+            PhoneLookup.NORMALIZED_NUMBER,
+    };
+
+    @SmallTest
+    public void testProjectionDecodesLikeFullCursor() {
+        final CallerInfo narrow = CallerInfo.getCallerInfo(getContext(), LOOKUP_URI,
+                buildCursor(CallerInfo.PHONE_LOOKUP_PROJECTION));
+        final CallerInfo full = CallerInfo.getCallerInfo(getContext(), LOOKUP_URI,
+                buildCursor(ALL_COLUMNS));
+
+        for (CallerInfo info : new CallerInfo[] { narrow, full }) {
+            assertTrue(info.contactExists);
+            assertEquals(NAME, info.name);
+            assertEquals(NUMBER, info.phoneNumber);
+            assertEquals(NORMALIZED_NUMBER, info.normalizedNumber);
+            assertEquals(Phone.TYPE_MOBILE, info.numberType);
+            assertEquals(CONTACT_ID, info.contactIdOrZero);
+            assertEquals(LOOKUP_KEY, info.lookupKeyOrNull);
+            assertEquals(Uri.parse(PHOTO_URI), info.contactDisplayPhotoUri);
+            assertEquals(Uri.parse(THUMBNAIL_URI), info.contactThumbnailUri);
+            assertNull(info.contactRingtoneUri);
+            assertFalse(info.shouldSendToVoicemail);
+        }
+        assertEquals(full.phoneLabel, narrow.phoneLabel);
+    }
+
+    @SmallTest
+    public void testEmptyCursorIsNotAContact() {
+        final CallerInfo info = CallerInfo.getCallerInfo(getContext(), LOOKUP_URI,
+                new MatrixCursor(CallerInfo.PHONE_LOOKUP_PROJECTION));
+        assertFalse(info.contactExists);
+        assertEquals(0, info.contactIdOrZero);
+    }
+
+    @SmallTest
+    public void testCopyIsIndependent() {
+        final CallerInfo info = CallerInfo.getCallerInfo(getContext(), LOOKUP_URI,
+                buildCursor(CallerInfo.PHONE_LOOKUP_PROJECTION));
+        final CallerInfo copy = info.copy();
+        assertNotSame(info, copy);
+        assertEquals(info.name, copy.name);
+        assertEquals(info.lookupKeyOrNull, copy.lookupKeyOrNull);
+        assertEquals(info.contactDisplayPhotoUri, copy.contactDisplayPhotoUri);
+
+        copy.name = "John Doe";
+        assertEquals(NAME, info.name);
+    }
+
+    /**
+     * Compares the cost of decoding a matched row with the narrow projection against decoding
+     * every column a {@code null} projection returns. Results are written to the log.
+     */
+    @LargeTest
+    public void testDecodeBenchmark() {
+        final int iterations = 2000;
+        // Warm up both paths before timing them.
+        decode(ALL_COLUMNS, iterations / 10);
+        decode(CallerInfo.PHONE_LOOKUP_PROJECTION, iterations / 10);
+
+        final long fullNanos = decode(ALL_COLUMNS, iterations);
+        final long narrowNanos = decode(CallerInfo.PHONE_LOOKUP_PROJECTION, iterations);
+        Log.i(this, "Cursor decode: null projection " + (fullNanos / iterations)
+                + "ns/row, narrow projection " + (narrowNanos / iterations) + "ns/row");
+    }
+
+    /**
+     * @return The total time spent decoding, excluding building the cursors.
+     */
+    private long decode(String[] columns, int iterations) {
+        final Cursor[] cursors = new Cursor[iterations];
+        for (int i = 0; i < iterations; i++) {
+            cursors[i] = buildCursor(columns);
+        }
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            CallerInfo.getCallerInfo(getContext(), LOOKUP_URI, cursors[i]);
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    private static Cursor buildCursor(String[] columns) {
+        final MatrixCursor cursor = new MatrixCursor(columns);
+        final MatrixCursor.RowBuilder row = cursor.newRow();
+        for (String column : columns) {
+            row.add(valueOf(column));
+        }
+        return cursor;
+    }
+
+    private static Object valueOf(String column) {
+        switch (column) {
+            case PhoneLookup._ID:
+                return CONTACT_ID;
+            case PhoneLookup.DISPLAY_NAME:
+                return NAME;
+            case PhoneLookup.NUMBER:
+                return NUMBER;
+            case PhoneLookup.NORMALIZED_NUMBER:
+                return NORMALIZED_NUMBER;
+            case PhoneLookup.TYPE:
+                return Phone.TYPE_MOBILE;
+            case PhoneLookup.LOOKUP_KEY:
+                return LOOKUP_KEY;
+            case PhoneLookup.PHOTO_URI:
+                return PHOTO_URI;
+            case PhoneLookup.PHOTO_THUMBNAIL_URI:
+                return THUMBNAIL_URI;
+            case PhoneLookup.SEND_TO_VOICEMAIL:
+                return 0;
+            case PhoneLookup.LABEL:
+            case PhoneLookup.CUSTOM_RINGTONE:
+                return null;
+            default:
+                return 1;
+        }
+    }
+}
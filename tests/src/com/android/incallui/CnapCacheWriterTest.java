@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.dialer.calllog.ContactInfo;
+import com.android.dialer.service.CachedNumberLookupService;
+import com.android.dialer.service.CachedNumberLookupService.CachedContactInfo;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+@SmallTest
+public class CnapCacheWriterTest extends InstrumentationTestCase {
+
+    /** How long to wait for the worker thread to write a batch. */
+    private static final long WRITE_TIMEOUT_MS = 1000;
+
+    @Mock private CachedNumberLookupService mLookupService;
+    @Mock private CachedContactInfo mCachedContactInfo;
+    private MockCallListWrapper mCallList;
+    private CnapCacheWriter mWriter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        System.setProperty("dexmaker.dexcache",
+                getInstrumentation().getTargetContext().getCacheDir().getPath());
+        MockitoAnnotations.initMocks(this);
+        when(mLookupService.buildCachedContactInfo(any(ContactInfo.class)))
+                .thenReturn(mCachedContactInfo);
+        mCallList = new MockCallListWrapper();
+        mWriter = new CnapCacheWriter(getInstrumentation().getTargetContext(), mLookupService,
+                mCallList.getCallList());
+    }
+
+    public void testQueuedNamesAreWrittenInOneBatch() {
+        mWriter.enqueue("6505551234", "JANE DOE");
+        mWriter.enqueue("6505555678", "JOHN DOE");
+        mWriter.enqueue("6505551234", "JANE DOE");
+        mWriter.flush();
+
+        verify(mLookupService, timeout(WRITE_TIMEOUT_MS).times(2))
+                .addContact(any(Context.class), any(CachedContactInfo.class));
+    }
+
+    public void testNumberIsQueuedAgainAfterItsBatch() {
+        mWriter.enqueue("6505551234", "JANE DOE");
+        mWriter.flush();
+        verify(mLookupService, timeout(WRITE_TIMEOUT_MS))
+                .addContact(any(Context.class), any(CachedContactInfo.class));
+
+        mWriter.enqueue("6505551234", "JANE DOE");
+        mWriter.flush();
+        verify(mLookupService, timeout(WRITE_TIMEOUT_MS).times(2))
+                .addContact(any(Context.class), any(CachedContactInfo.class));
+    }
+
+    public void testWritesAreDeferredWhileRinging() {
+        mCallList.setHasCall(Call.State.INCOMING, true);
+        mWriter.enqueue("6505551234", "JANE DOE");
+        mWriter.flush();
+        verify(mLookupService, after(WRITE_TIMEOUT_MS).never())
+                .addContact(any(Context.class), any(CachedContactInfo.class));
+
+        mCallList.setHasCall(Call.State.INCOMING, false);
+        mWriter.flush();
+        verify(mLookupService, timeout(WRITE_TIMEOUT_MS))
+                .addContact(any(Context.class), any(CachedContactInfo.class));
+    }
+}
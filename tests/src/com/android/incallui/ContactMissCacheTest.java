@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class ContactMissCacheTest extends AndroidTestCase {
+
+    private static final String NUMBER = "+16505551234";
+    private static final long NOW = 1000;
+
+    private ContactMissCache mCache;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mCache = new ContactMissCache(getContext());
+    }
+
+    public void testLocalMissExpires() {
+        assertNull(mCache.getLocalMiss(NUMBER, NOW));
+        mCache.putLocalMiss(NUMBER, new ContactMissCache.LocalMiss("(650) 555-1234", "CA"), NOW);
+
+        final ContactMissCache.LocalMiss localMiss = mCache.getLocalMiss(NUMBER, NOW + 1);
+        assertNotNull(localMiss);
+        assertEquals("CA", localMiss.geoDescription);
+        assertNull(mCache.getLocalMiss(NUMBER, NOW + ContactMissCache.LOCAL_MISS_TTL_MS));
+
+        assertEquals(1, mCache.getLocalHitCount());
+        assertEquals(2, mCache.getLocalMissCount());
+    }
+
+    public void testRemoteMissOutlivesLocalMiss() {
+        mCache.putLocalMiss(NUMBER, new ContactMissCache.LocalMiss(NUMBER, null), NOW);
+        mCache.putRemoteMiss(NUMBER, NOW);
+
+        final long afterLocalExpiry = NOW + ContactMissCache.LOCAL_MISS_TTL_MS;
+        assertNull(mCache.getLocalMiss(NUMBER, afterLocalExpiry));
+        assertTrue(mCache.isRemoteMiss(NUMBER, afterLocalExpiry));
+        assertFalse(mCache.isRemoteMiss(NUMBER, NOW + ContactMissCache.REMOTE_MISS_TTL_MS));
+
+        assertEquals(1, mCache.getRemoteHitCount());
+        assertEquals(1, mCache.getRemoteMissCount());
+    }
+
+    public void testUnknownNumbersAreNotCached() {
+        mCache.putRemoteMiss(null, NOW);
+        assertEquals(0, mCache.size());
+        assertFalse(mCache.isRemoteMiss(null, NOW));
+    }
+
+    public void testRemoveForgetsBothMisses() {
+        mCache.putLocalMiss(NUMBER, new ContactMissCache.LocalMiss(NUMBER, null), NOW);
+        mCache.putRemoteMiss(NUMBER, NOW);
+        mCache.remove(NUMBER);
+
+        assertNull(mCache.getLocalMiss(NUMBER, NOW));
+        assertFalse(mCache.isRemoteMiss(NUMBER, NOW));
+    }
+}
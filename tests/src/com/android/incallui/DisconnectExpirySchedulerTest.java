@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+public class DisconnectExpirySchedulerTest extends AndroidTestCase {
+
+    private static final long DELAY_MS = 2000;
+
+    private final ArrayList<List<Call>> mBatches = new ArrayList<>();
+    private DisconnectExpiryScheduler mScheduler;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mBatches.clear();
+        mScheduler = new DisconnectExpiryScheduler(new DisconnectExpiryScheduler.Callback() {
+            @Override
+            public void onCallsExpired(List<Call> calls) {
+                mBatches.add(new ArrayList<>(calls));
+            }
+        });
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mScheduler.cancelAll();
+        super.tearDown();
+    }
+
+    public void testRepeatedScheduleKeepsOneDeadline() {
+        final Call call = new Call(Call.State.DISCONNECTED);
+        assertTrue(mScheduler.schedule(call, DELAY_MS));
+        assertFalse(mScheduler.schedule(call, DELAY_MS));
+        assertFalse(mScheduler.schedule(call, DELAY_MS * 2));
+        assertEquals(1, mScheduler.size());
+
+        mScheduler.onTick(SystemClock.uptimeMillis() + DELAY_MS);
+        assertEquals(1, mBatches.size());
+        assertEquals(1, mBatches.get(0).size());
+        assertEquals(0, mScheduler.size());
+    }
+
+    public void testCallsDueTogetherExpireInOneBatch() {
+        final Call first = new Call(Call.State.DISCONNECTED);
+        final Call second = new Call(Call.State.DISCONNECTED);
+        final Call later = new Call(Call.State.DISCONNECTED);
+        mScheduler.schedule(second, DELAY_MS);
+        mScheduler.schedule(first, DELAY_MS);
+        mScheduler.schedule(later, DELAY_MS * 2);
+
+        mScheduler.onTick(SystemClock.uptimeMillis() + DELAY_MS);
+        assertEquals(1, mBatches.size());
+        assertEquals(2, mBatches.get(0).size());
+        assertSame(first, mBatches.get(0).get(0));
+        assertSame(second, mBatches.get(0).get(1));
+        assertTrue(mScheduler.isScheduled(later));
+    }
+
+    public void testExtendPostponesExpiry() {
+        final Call call = new Call(Call.State.DISCONNECTED);
+        mScheduler.schedule(call, 0);
+        mScheduler.extend(call, DELAY_MS * 2);
+
+        mScheduler.onTick(SystemClock.uptimeMillis() + DELAY_MS);
+        assertTrue(mBatches.isEmpty());
+        assertTrue(mScheduler.isScheduled(call));
+    }
+
+    public void testCancelledCallDoesNotExpire() {
+        final Call call = new Call(Call.State.DISCONNECTED);
+        mScheduler.schedule(call, 0);
+        assertTrue(mScheduler.cancel(call));
+        assertFalse(mScheduler.cancel(call));
+
+        mScheduler.onTick(SystemClock.uptimeMillis() + DELAY_MS);
+        assertTrue(mBatches.isEmpty());
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@SmallTest
+public class LatencyHistogramTest extends AndroidTestCase {
+
+    public void testBucketBoundsAreInclusive() {
+        final LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.record(0);
+        histogram.record(250);
+        histogram.record(251);
+        histogram.record(Long.MAX_VALUE / 2);
+
+        assertEquals(4, histogram.getCount());
+        assertEquals(2, histogram.getBucketCount(0));
+        assertEquals(1, histogram.getBucketCount(1));
+        assertEquals(1, histogram.getBucketCount(14));
+    }
+
+    public void testDumpListsOnlyUsedBuckets() {
+        final LatencyHistogram histogram = new LatencyHistogram("Provider query");
+        histogram.record(800);
+        histogram.record(1200);
+
+        final StringWriter out = new StringWriter();
+        histogram.dump(new PrintWriter(out));
+        assertEquals("Provider query: n=2 avg=1000us max=1200us [<=1000us:1, <=2000us:1]\n",
+                out.toString());
+    }
+}